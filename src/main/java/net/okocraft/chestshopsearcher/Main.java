@@ -1,14 +1,21 @@
 package net.okocraft.chestshopsearcher;
 
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import org.bukkit.Bukkit;
 import org.bukkit.plugin.java.JavaPlugin;
 
 import net.okocraft.chestshopsearcher.command.CSSCommand;
+import net.okocraft.chestshopsearcher.command.CompletionIndex;
+import net.okocraft.chestshopsearcher.command.SearchExecutor;
 import net.okocraft.chestshopsearcher.config.Config;
+import net.okocraft.chestshopsearcher.database.OwnerDirectory;
+import net.okocraft.chestshopsearcher.database.ShopIndex;
 import net.okocraft.chestshopsearcher.database.ShopManager;
+import net.okocraft.chestshopsearcher.database.ShopWriter;
 import net.okocraft.chestshopsearcher.listener.ChestShopListener;
+import net.okocraft.chestshopsearcher.listener.PlayerListener;
 import org.jetbrains.annotations.Nullable;
 
 public class Main extends JavaPlugin {
@@ -27,8 +34,23 @@ public class Main extends JavaPlugin {
         // init database.
         ShopManager.getInstance();
         log.info("We are using " + (Config.getInstance().isUsingMySQL() ? "MySQL" : "SQLite"));
+        if (!ShopManager.getInstance().isSchemaReady()) {
+            // 移行前のテーブルに読み書きするとショップを壊すので、プラグインを止める。
+            log.severe("The shops table does not match this version. Disabling ChestShopSearcher.");
+            Bukkit.getPluginManager().disablePlugin(this);
+            return;
+        }
+
+        // 検索に使うインデックスを読み込む。タブ補完に使う名前はその後に別のスレッドで読み込む。
+        long start = System.nanoTime();
+        ShopIndex.getInstance().load();
+        log.info("Loaded " + ShopIndex.getInstance().size() + " shops into the search index in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms.");
+        CompletionIndex.getInstance().warmUp();
 
+        ShopWriter.getInstance().start();
         ChestShopListener.getInstance().start();
+        PlayerListener.getInstance().start();
 
         CSSCommand.init();
 
@@ -38,6 +60,13 @@ public class Main extends JavaPlugin {
 
     @Override
     public void onDisable() {
+        // 書き込み待ちのショップを全て書き込んでからDBを閉じる。
+        ChestShopListener.getInstance().stop();
+        PlayerListener.getInstance().stop();
+        SearchExecutor.getInstance().shutdown();
+        CompletionIndex.getInstance().shutdown();
+        OwnerDirectory.getInstance().shutdown();
+        ShopWriter.getInstance().shutdown();
         ShopManager.getInstance().close();
         log.info("ChestShopSearcher has been disabled!");
     }
@@ -5,42 +5,67 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
-
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds NMS & OBC classes and their members by reflection.
+ * <p>
+ * Every lookup is cached, including failed ones, and the caches are safe to use from any thread.
+ * Members are cached per class with {@link ClassValue}, so the caches do not keep classes from being unloaded.
+ * For members that are called repeatedly, prefer the {@link MethodHandle} accessors over {@link Method#invoke}.
+ */
 public class ReflectionUtil {
 
     /*
      * The server version string to location NMS & OBC classes
      */
-    private static String versionString;
+    private static volatile String versionString;
 
     /*
      * Cache of NMS classes that we've searched for
      */
     @NotNull
-    private static Map<String, Class<?>> loadedNMSClasses = new HashMap<>();
+    private static final Map<String, Optional<Class<?>>> loadedNMSClasses = new ConcurrentHashMap<>();
 
     /*
      * Cache of OBS classes that we've searched for
      */
     @NotNull
-    private static Map<String, Class<?>> loadedOBCClasses = new HashMap<>();
+    private static final Map<String, Optional<Class<?>>> loadedOBCClasses = new ConcurrentHashMap<>();
 
     /*
-     * Cache of methods that we've found in particular classes
+     * Cache of methods that we've found in particular classes, keyed by name and parameter types
      */
     @NotNull
-    private static Map<Class<?>, Map<String, Method>> loadedMethods = new HashMap<>();
+    private static final ClassValue<Map<String, Optional<Method>>> loadedMethods = new MemberCache<>();
 
     /*
      * Cache of fields that we've found in particular classes
      */
     @NotNull
-    private static Map<Class<?>, Map<String, Field>> loadedFields = new HashMap<>();
+    private static final ClassValue<Map<String, Optional<Field>>> loadedFields = new MemberCache<>();
+
+    /*
+     * Cache of method and constructor handles that we've created for particular classes
+     */
+    @NotNull
+    private static final ClassValue<Map<String, Optional<MethodHandle>>> loadedHandles = new MemberCache<>();
+
+    private static final class MemberCache<T> extends ClassValue<Map<String, Optional<T>>> {
+        @Override
+        protected Map<String, Optional<T>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    }
 
     /**
      * Gets the version string for NMS & OBC class paths
@@ -64,22 +89,8 @@ public class ReflectionUtil {
      */
     @Nullable
     public static Class<?> getNMSClass(String nmsClassName) {
-        if (loadedNMSClasses.containsKey(nmsClassName)) {
-            return loadedNMSClasses.get(nmsClassName);
-        }
-
-        String clazzName = "net.minecraft.server." + getVersion() + nmsClassName;
-        Class<?> clazz;
-
-        try {
-            clazz = Class.forName(clazzName);
-        } catch (Throwable t) {
-            t.printStackTrace();
-            return loadedNMSClasses.put(nmsClassName, null);
-        }
-
-        loadedNMSClasses.put(nmsClassName, clazz);
-        return clazz;
+        return loadedNMSClasses.computeIfAbsent(nmsClassName,
+                name -> findClass("net.minecraft.server." + getVersion() + name)).orElse(null);
     }
 
     /**
@@ -89,24 +100,19 @@ public class ReflectionUtil {
      * @return the found class at the specified path
      */
     @Nullable
-    public synchronized static Class<?> getOBCClass(String obcClassName) {
-        if (loadedOBCClasses.containsKey(obcClassName)) {
-            return loadedOBCClasses.get(obcClassName);
-        }
-
-        String clazzName = "org.bukkit.craftbukkit." + getVersion() + obcClassName;
-        Class<?> clazz;
+    public static Class<?> getOBCClass(String obcClassName) {
+        return loadedOBCClasses.computeIfAbsent(obcClassName,
+                name -> findClass("org.bukkit.craftbukkit." + getVersion() + name)).orElse(null);
+    }
 
+    @NotNull
+    private static Optional<Class<?>> findClass(@NotNull String className) {
         try {
-            clazz = Class.forName(clazzName);
+            return Optional.of(Class.forName(className));
         } catch (Throwable t) {
             t.printStackTrace();
-            loadedOBCClasses.put(obcClassName, null);
-            return null;
+            return Optional.empty();
         }
-
-        loadedOBCClasses.put(obcClassName, clazz);
-        return clazz;
     }
 
     /**
@@ -158,27 +164,14 @@ public class ReflectionUtil {
      */
     @Nullable
     public static Method getMethod(@NotNull Class<?> clazz, @NotNull String methodName, Class<?>... params) {
-        if (!loadedMethods.containsKey(clazz)) {
-            loadedMethods.put(clazz, new HashMap<>());
-        }
-
-        Map<String, Method> methods = loadedMethods.get(clazz);
-
-        if (methods.containsKey(methodName)) {
-            return methods.get(methodName);
-        }
-
-        try {
-            Method method = clazz.getMethod(methodName, params);
-            methods.put(methodName, method);
-            loadedMethods.put(clazz, methods);
-            return method;
-        } catch (Exception e) {
-            e.printStackTrace();
-            methods.put(methodName, null);
-            loadedMethods.put(clazz, methods);
-            return null;
-        }
+        return loadedMethods.get(clazz).computeIfAbsent(toKey(methodName, params), key -> {
+            try {
+                return Optional.of(clazz.getMethod(methodName, params));
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Optional.empty();
+            }
+        }).orElse(null);
     }
 
     /**
@@ -190,26 +183,62 @@ public class ReflectionUtil {
      */
     @Nullable
     public static Field getField(@NotNull Class<?> clazz, @NotNull String fieldName) {
-        if (!loadedFields.containsKey(clazz)) {
-            loadedFields.put(clazz, new HashMap<>());
-        }
+        return loadedFields.get(clazz).computeIfAbsent(fieldName, key -> {
+            try {
+                return Optional.of(clazz.getField(fieldName));
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
 
-        Map<String, Field> fields = loadedFields.get(clazz);
+    /**
+     * Get a handle to a public method from a class that has the specific paramaters.
+     * For an instance method, the receiver is the first argument of the handle.
+     *
+     * @param clazz      The class we are searching
+     * @param methodName The name of the method
+     * @param params     Any parameters that the method has
+     * @return The method handle
+     */
+    @Nullable
+    public static MethodHandle getMethodHandle(@NotNull Class<?> clazz, @NotNull String methodName, Class<?>... params) {
+        return loadedHandles.get(clazz).computeIfAbsent(toKey(methodName, params), key -> {
+            Method method = getMethod(clazz, methodName, params);
+            if (method == null) {
+                return Optional.empty();
+            }
+            try {
+                return Optional.of(MethodHandles.publicLookup().unreflect(method));
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
 
-        if (fields.containsKey(fieldName)) {
-            return fields.get(fieldName);
-        }
+    /**
+     * Get a handle to a public constructor of a class
+     *
+     * @param clazz  The constructor class
+     * @param params The parameters in the constructor
+     * @return The constructor handle
+     */
+    @Nullable
+    public static MethodHandle getConstructorHandle(@NotNull Class<?> clazz, Class<?>... params) {
+        return loadedHandles.get(clazz).computeIfAbsent(toKey("<init>", params), key -> {
+            try {
+                return Optional.of(MethodHandles.publicLookup().findConstructor(clazz, MethodType.methodType(void.class, params)));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                e.printStackTrace();
+                return Optional.empty();
+            }
+        }).orElse(null);
+    }
 
-        try {
-            Field field = clazz.getField(fieldName);
-            fields.put(fieldName, field);
-            loadedFields.put(clazz, fields);
-            return field;
-        } catch (Exception e) {
-            e.printStackTrace();
-            fields.put(fieldName, null);
-            loadedFields.put(clazz, fields);
-            return null;
-        }
+    @NotNull
+    private static String toKey(@NotNull String name, Class<?>... params) {
+        return name + Arrays.toString(params);
     }
-}
\ No newline at end of file
+}
@@ -28,7 +28,8 @@ public class CSSCommand extends BaseCommand implements CommandExecutor, TabCompl
 
     private enum SubCommands {
         RELOAD(new ReloadCommand()),
-        SEARCH(new SearchCommand());
+        SEARCH(new SearchCommand()),
+        STATS(new StatsCommand());
 
         private final BaseCommand subCommand;
 
@@ -0,0 +1,410 @@
+package net.okocraft.chestshopsearcher.command;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.Acrobot.Breeze.Utils.Encoding.Base62;
+import com.Acrobot.ChestShop.ChestShop;
+import com.Acrobot.ChestShop.Database.DaoCreator;
+import com.Acrobot.ChestShop.Database.Item;
+import com.Acrobot.ChestShop.ORMlite.dao.CloseableIterator;
+import com.Acrobot.ChestShop.ORMlite.dao.Dao;
+import com.Acrobot.ChestShop.UUIDs.NameManager;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.inventory.ItemStack;
+
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.config.Config;
+import net.okocraft.chestshopsearcher.database.OwnerDirectory;
+import net.okocraft.chestshopsearcher.database.Shop;
+import net.okocraft.chestshopsearcher.database.ShopIndex;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * /css search のタブ補完に使う持ち主の名前、アイテムの名前、ワールド名の索引。
+ * <p>
+ * 候補は {@link CompletionTable} に持ち、その名前を使っているショップの数が多い順に返す。
+ * ショップの数は起動時に {@link ShopIndex} から数え、以降はショップの作成、更新、削除のたびに {@link #update(Shop, Shop)} で増減する。
+ * 持ち主の名前はショップが無くなったら候補から消す。
+ * <p>
+ * 起動時の読み込みは {@link #warmUp()} で別のスレッドに任せ、サーバーの起動を待たせない。
+ * 名前の読み込みは段階ごとに別のスレッドで進め、段階ごとに出来上がった候補を一度に加える。持ち主の名前は {@link OwnerDirectory} から読む。
+ * 読み込みが終わるまでは、出来上がった段階の名前とイベントで追加された名前だけで補完する。
+ * ChestShopのアイテムの名前は {@link ItemNameCache} に保存し、次の起動からはキャッシュに無いIDの分だけを名前にする。
+ * ChestShopのアイテムのデータベースは同時に使うことを考えていないので、アイテムのコードの復元だけは一つのスレッドで順に行う。
+ */
+public final class CompletionIndex {
+
+    private static final CompletionIndex INSTANCE = new CompletionIndex();
+
+    private static final String ITEM_NAME_CACHE_FILE = "item-names.cache";
+
+    /** ChestShopのアイテムのデータベースを同時に使わないためのロック。 */
+    private static final Object ITEM_DATABASE_LOCK = new Object();
+
+    private final CompletionTable owners = new CompletionTable(true);
+    private final CompletionTable items = new CompletionTable(false);
+    private final CompletionTable worlds = new CompletionTable(false);
+
+    @Nullable
+    private volatile ExecutorService workers;
+
+    private CompletionIndex() {
+    }
+
+    @NotNull
+    public static CompletionIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 補完に使う名前の読み込みを別のスレッドで始める。
+     * {@link ShopIndex} を読み込んだ後、ショップのイベントを受け取り始める前にメインスレッドで呼ぶ。
+     */
+    public void warmUp() {
+        long start = System.nanoTime();
+
+        // ショップの数はイベントで増減するので、イベントより前にここで数えておく。行を数えるだけなので速い。
+        ShopIndex index = ShopIndex.getInstance();
+        Map<UUID, Integer> ownerCounts = index.getOwnerCounts();
+        Map<String, Integer> itemCounts = new HashMap<>();
+        index.getItemCounts().forEach((item, count) -> itemCounts.merge(toItemName(item), count, Integer::sum));
+        items.adjustAll(itemCounts);
+        Map<String, Integer> worldCounts = index.getWorldCounts();
+        List<String> worldNames = new ArrayList<>(worldCounts.keySet());
+        for (World world : Bukkit.getWorlds()) {
+            worldNames.add(world.getName());
+        }
+        worlds.addAll(worldNames);
+        worlds.adjustAll(worldCounts);
+        getLogger().info("Counted shops for tab completion in " + elapsedMillis(start) + " ms.");
+
+        int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        AtomicInteger threadNumber = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ChestShopSearcher-Completion-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        workers = pool;
+
+        CompletableFuture<Void> materials = phase("material names", start, pool,
+                () -> CompletableFuture.supplyAsync(CompletionIndex::getMaterialNames, pool),
+                names -> {
+                    items.addAll(names);
+                    return names.size();
+                });
+        CompletableFuture<Void> ownerNames = phase("owner names", start, pool,
+                () -> OwnerDirectory.getInstance().requestNames(ownerCounts.keySet()),
+                names -> {
+                    Map<String, Integer> counts = new HashMap<>();
+                    names.forEach((uuid, name) -> counts.merge(toOwnerName(uuid, name), ownerCounts.get(uuid), Integer::sum));
+                    owners.adjustAll(counts);
+                    return counts.size();
+                });
+        CompletableFuture<Void> itemNames = phase("ChestShop item names", start, pool,
+                () -> loadItemNames(pool),
+                names -> {
+                    items.addAll(names);
+                    return names.size();
+                });
+
+        CompletableFuture.allOf(materials, ownerNames, itemNames).whenComplete((result, e) -> {
+            pool.shutdown();
+            if (e == null) {
+                getLogger().info("Tab completion is ready in " + elapsedMillis(start) + " ms.");
+            }
+        });
+    }
+
+    /**
+     * 読み込み中のスレッドを止める。
+     */
+    public void shutdown() {
+        ExecutorService pool = workers;
+        if (pool != null) {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * ショップの作成、更新、削除をショップの数に反映する。メインスレッドで呼ぶ。
+     *
+     * @param previous 置き換えたか削除したショップ。無ければnull
+     * @param current  新しいショップ。削除した場合はnull
+     */
+    public void update(@Nullable Shop previous, @Nullable Shop current) {
+        if (previous != null && current != null && previous.getOwnerUniqueId().equals(current.getOwnerUniqueId())
+                && previous.getItem().equals(current.getItem()) && previous.getWorld().equals(current.getWorld())) {
+            // 取引による更新では名前は変わらない。
+            return;
+        }
+        if (previous != null) {
+            adjust(previous, -1);
+        }
+        if (current != null) {
+            adjust(current, 1);
+        }
+    }
+
+    private void adjust(@NotNull Shop shop, int delta) {
+        // 辞書に無い持ち主は名前を別のスレッドで読み、読み終わってから数える。辞書にあればこの場で数える。
+        UUID owner = shop.getOwnerUniqueId();
+        OwnerDirectory.getInstance().requestName(owner).thenAccept(name -> {
+            if (name != null) {
+                owners.adjust(toOwnerName(owner, name), delta);
+            }
+        });
+        items.adjust(toItemName(shop.getItem()), delta);
+        worlds.adjust(shop.getWorld(), delta);
+    }
+
+    /**
+     * 名前を変えた持ち主のショップの数を新しい名前に移す。メインスレッドで呼ぶ。
+     *
+     * @param oldName 元の名前
+     * @param newName 新しい名前
+     */
+    public void renameOwner(@NotNull String oldName, @NotNull String newName) {
+        owners.rename(oldName, newName);
+    }
+
+    /**
+     * アイテムの名前を補完に加える。
+     *
+     * @param name {@code MATERIAL#code} の形式のアイテムの名前
+     */
+    void addItem(@NotNull String name) {
+        if (!name.isEmpty()) {
+            items.add(name);
+        }
+    }
+
+    /**
+     * ワールド名を補完に加える。
+     *
+     * @param name ワールド名
+     */
+    void addWorld(@NotNull String name) {
+        worlds.add(name);
+    }
+
+    /**
+     * 入力中の文字列から始まる持ち主の名前を、ショップの数が多い順に取得する。読み込みが終わっていなければ読み込んだ分だけを返す。
+     *
+     * @param token 入力中の文字列
+     * @return 当てはまる名前のリスト
+     */
+    @NotNull
+    List<String> completeOwners(@NotNull String token) {
+        return owners.complete(token, getLimit());
+    }
+
+    /**
+     * 入力中の文字列から始まるアイテムの名前を、ショップの数が多い順に取得する。読み込みが終わっていなければ読み込んだ分だけを返す。
+     *
+     * @param token 入力中の文字列
+     * @return 当てはまる名前のリスト
+     */
+    @NotNull
+    List<String> completeItems(@NotNull String token) {
+        return items.complete(token, getLimit());
+    }
+
+    /**
+     * 入力中の文字列から始まるワールド名を、ショップの数が多い順に取得する。
+     *
+     * @param token 入力中の文字列
+     * @return 当てはまる名前のリスト
+     */
+    @NotNull
+    List<String> completeWorlds(@NotNull String token) {
+        return worlds.complete(token, getLimit());
+    }
+
+    private static int getLimit() {
+        return Math.max(1, Config.getInstance().getSearchCompletionLimit());
+    }
+
+    /**
+     * チェストショップにおけるアイテム名を、補完の候補と同じ空白の無い形にする。
+     */
+    @NotNull
+    private static String toItemName(@NotNull String item) {
+        return item.replace(' ', '_');
+    }
+
+    /**
+     * 読み込みの一つの段階を実行し、出来上がった名前を補完に加えて、掛かった時間を記録する。
+     *
+     * @param publish 出来上がった名前を補完に加え、加えた数を返す処理
+     */
+    @NotNull
+    private static <T> CompletableFuture<Void> phase(@NotNull String name, long start, @NotNull ExecutorService pool,
+                                                     @NotNull Supplier<CompletableFuture<T>> loader, @NotNull ToIntFunction<T> publish) {
+        return loader.get().thenAccept(loaded -> {
+            int count = publish.applyAsInt(loaded);
+            getLogger().info("Loaded " + count + " " + name + " for tab completion in " + elapsedMillis(start) + " ms.");
+        }).exceptionally(e -> {
+            if (!pool.isShutdown()) {
+                getLogger().log(Level.WARNING, "Failed to load " + name + " for tab completion.", e);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * ChestShopのアイテムの名前を読み込む。データフォルダのキャッシュに無いIDだけを名前にし、キャッシュに書き足す。
+     */
+    @NotNull
+    private static CompletableFuture<Set<String>> loadItemNames(@NotNull ExecutorService pool) {
+        return CompletableFuture.supplyAsync(() -> {
+            Path path = Main.getInstance().getDataFolder().toPath().resolve(ITEM_NAME_CACHE_FILE);
+            try {
+                return ItemNameCache.load(path);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Failed to read " + ITEM_NAME_CACHE_FILE + ". All item names will be decoded again.", e);
+                return ItemNameCache.empty(path);
+            }
+        }, pool).thenApplyAsync(cache -> {
+            int cached = cache.size();
+            List<Integer> ids = getNewItemIds(cache);
+            // アイテムのデータベースは同時に使えないので、このスレッドだけで順に復元する。
+            Map<Integer, String> added = new HashMap<>(ids.size() * 2);
+            for (Integer id : ids) {
+                String name = codeToName(Base62.encode(id));
+                // 復元できなかったIDは保存せず、次の起動でもう一度試す。
+                if (!name.isEmpty()) {
+                    added.put(id, name);
+                }
+            }
+            try {
+                cache.save(added);
+            } catch (IOException e) {
+                getLogger().log(Level.WARNING, "Failed to write " + ITEM_NAME_CACHE_FILE + ".", e);
+            }
+            getLogger().info("Read " + cached + " item names from " + ITEM_NAME_CACHE_FILE + " and decoded " + added.size()
+                    + " of " + ids.size() + " new item codes.");
+            return new HashSet<>(cache.getNames());
+        }, pool);
+    }
+
+    /**
+     * キャッシュにまだ無いアイテムのIDを取得する。アイテムのテーブルからはIDの列だけを読む。
+     * キャッシュにあるIDがテーブルから消えていた場合は、テーブルが作り直されたものとしてキャッシュを捨て、全てのIDを返す。
+     */
+    @NotNull
+    private static List<Integer> getNewItemIds(@NotNull ItemNameCache cache) {
+        List<Integer> all = new ArrayList<>();
+        try {
+            Dao<Item, Integer> dao = DaoCreator.getDao(Item.class);
+            try (CloseableIterator<Item> it = dao.queryBuilder().selectColumns("id").iterator()) {
+                while (it.hasNext()) {
+                    all.add(it.next().getId());
+                }
+            }
+        } catch (SQLException | IOException e) {
+            getLogger().log(Level.WARNING, "Failed to read the item ids from ChestShop. New item names will not be decoded.", e);
+            return new ArrayList<>();
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        int cached = 0;
+        for (Integer id : all) {
+            if (cache.contains(id)) {
+                cached++;
+            } else {
+                ids.add(id);
+            }
+        }
+        if (cached == cache.size()) {
+            return ids;
+        }
+
+        cache.reset();
+        return all;
+    }
+
+    @NotNull
+    private static Set<String> getMaterialNames() {
+        Set<String> names = new HashSet<>();
+        for (Material material : Material.values()) {
+            names.add(material.name());
+        }
+        return names;
+    }
+
+    /**
+     * 持ち主のアカウントの名前を補完に使う名前にする。補完には空白を入れられないので、管理者のショップは {@code Admin_Shop} にする。
+     */
+    @NotNull
+    private static String toOwnerName(@NotNull UUID uuid, @NotNull String name) {
+        return NameManager.isAdminShop(uuid) ? "Admin_Shop" : name;
+    }
+
+    /**
+     * ChestShopのアイテムのコードを補完に使う名前にする。
+     *
+     * @param code アイテムのコード
+     * @return {@code MATERIAL#code} の形式の名前。アイテムが無い場合は空文字列
+     */
+    @NotNull
+    static String codeToName(@NotNull String code) {
+        ItemStack item;
+        synchronized (ITEM_DATABASE_LOCK) {
+            item = ChestShop.getItemDatabase().getFromCode(code);
+        }
+        if (item == null) {
+            return "";
+        }
+
+        return getItemName(item, code);
+    }
+
+    /**
+     * 復元済みのアイテムとそのコードから、補完に使う名前を作る。アイテムのデータベースは使わない。
+     *
+     * @param item アイテム
+     * @param code アイテムのコード
+     * @return {@code MATERIAL#code} の形式の名前
+     */
+    @NotNull
+    static String getItemName(@NotNull ItemStack item, @NotNull String code) {
+        return item.getType().name() + "#" + code;
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @NotNull
+    private static Logger getLogger() {
+        return Main.getInstance().getLogger();
+    }
+}
@@ -0,0 +1,192 @@
+package net.okocraft.chestshopsearcher.command;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * タブ補完の候補を大文字と小文字を区別せずに前方一致で引く、並べた索引。
+ * <p>
+ * 候補は小文字にした名前の順に並べた集合に持つので、入力中の文字列から始まる候補は二分探索で範囲として取り出せる。
+ * 候補ごとにその名前を使っているショップの数を数え、多い順に上限の数だけを返す。
+ * <p>
+ * 読み取りはロックを取らずにどのスレッドからでも行える。まとめて追加するときは新しい集合を作ってから一度に差し替える。
+ */
+final class CompletionTable {
+
+    /** 小文字にした名前と元の名前を区切る文字。小文字の名前の順に並び、大文字と小文字だけが違う名前も別の候補になる。 */
+    private static final char SEPARATOR = '\0';
+
+    /** 小文字にした名前、{@link #SEPARATOR}、元の名前をつないだキー。 */
+    private volatile NavigableSet<String> keys = new ConcurrentSkipListSet<>();
+    /** 小文字にした名前ごとの、その名前を使っているショップの数。 */
+    private final Map<String, Integer> counts = new ConcurrentHashMap<>();
+    /** ショップの数が0になった候補を消すかどうか。 */
+    private final boolean removeUnused;
+
+    /**
+     * @param removeUnused ショップの数が0になった候補を消す場合はtrue。ショップの数に関わらず候補を残す場合はfalse
+     */
+    CompletionTable(boolean removeUnused) {
+        this.removeUnused = removeUnused;
+    }
+
+    /**
+     * 候補を加える。
+     *
+     * @param name 候補
+     */
+    synchronized void add(@NotNull String name) {
+        keys.add(toKey(name));
+    }
+
+    /**
+     * 候補をまとめて加える。加えた候補は一度に見えるようになる。
+     *
+     * @param names 候補
+     */
+    synchronized void addAll(@NotNull Collection<String> names) {
+        NavigableSet<String> copy = new ConcurrentSkipListSet<>(keys);
+        for (String name : names) {
+            copy.add(toKey(name));
+        }
+        keys = copy;
+    }
+
+    /**
+     * 名前を使っているショップの数を増減する。
+     *
+     * @param name  名前
+     * @param delta 増減する数
+     */
+    synchronized void adjust(@NotNull String name, int delta) {
+        int count = adjustCount(name, delta);
+        if (removeUnused) {
+            if (count > 0) {
+                keys.add(toKey(name));
+            } else {
+                keys.remove(toKey(name));
+            }
+        }
+    }
+
+    /**
+     * 名前ごとのショップの数をまとめて増減する。加えた候補は一度に見えるようになる。
+     *
+     * @param deltas 名前と増減する数のマップ
+     */
+    synchronized void adjustAll(@NotNull Map<String, Integer> deltas) {
+        NavigableSet<String> copy = removeUnused ? new ConcurrentSkipListSet<>(keys) : keys;
+        for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+            int count = adjustCount(delta.getKey(), delta.getValue());
+            if (removeUnused) {
+                if (count > 0) {
+                    copy.add(toKey(delta.getKey()));
+                } else {
+                    copy.remove(toKey(delta.getKey()));
+                }
+            }
+        }
+        keys = copy;
+    }
+
+    /**
+     * 候補の名前を変え、ショップの数を新しい名前に移す。
+     *
+     * @param oldName 元の名前
+     * @param newName 新しい名前
+     */
+    synchronized void rename(@NotNull String oldName, @NotNull String newName) {
+        Integer count = counts.remove(oldName.toLowerCase(Locale.ROOT));
+        keys.remove(toKey(oldName));
+        if (count != null) {
+            adjust(newName, count);
+        } else if (!removeUnused) {
+            keys.add(toKey(newName));
+        }
+    }
+
+    /**
+     * 候補の数を取得する。
+     *
+     * @return 候補の数
+     */
+    int size() {
+        return keys.size();
+    }
+
+    /**
+     * 入力中の文字列から大文字と小文字を区別せずに始まる候補を、ショップの数が多い順に最大 {@code limit} 個取得する。
+     * ショップの数が同じ候補は名前の順に並べる。
+     *
+     * @param token 入力中の文字列
+     * @param limit 最大の数
+     * @return 候補のリスト
+     */
+    @NotNull
+    List<String> complete(@NotNull String token, int limit) {
+        String prefix = token.toLowerCase(Locale.ROOT);
+        NavigableSet<String> range = keys.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+
+        // ショップの数が少なく、名前の順で後ろの候補が先頭に来るヒープに、前から limit 個だけを残す。
+        Comparator<Candidate> order = Comparator.comparingInt((Candidate candidate) -> candidate.count).reversed()
+                .thenComparingInt(candidate -> candidate.index);
+        PriorityQueue<Candidate> best = new PriorityQueue<>(order.reversed());
+        int index = 0;
+        for (String key : range) {
+            int separator = key.indexOf(SEPARATOR);
+            Candidate candidate = new Candidate(key.substring(separator + 1),
+                    counts.getOrDefault(key.substring(0, separator), 0), index++);
+            if (best.size() < limit) {
+                best.add(candidate);
+            } else if (limit > 0 && order.compare(candidate, best.peek()) < 0) {
+                best.poll();
+                best.add(candidate);
+            }
+        }
+
+        List<Candidate> sorted = new ArrayList<>(best);
+        sorted.sort(order);
+        List<String> result = new ArrayList<>(sorted.size());
+        for (Candidate candidate : sorted) {
+            result.add(candidate.name);
+        }
+        return result;
+    }
+
+    private int adjustCount(@NotNull String name, int delta) {
+        Integer count = counts.compute(name.toLowerCase(Locale.ROOT), (key, current) -> {
+            // 持ち主の名前の解決が終わる前にショップが消えると一時的に負になるので、0以外はそのまま持つ。
+            int next = (current != null ? current : 0) + delta;
+            return next != 0 ? next : null;
+        });
+        return count != null ? count : 0;
+    }
+
+    @NotNull
+    private static String toKey(@NotNull String name) {
+        return name.toLowerCase(Locale.ROOT) + SEPARATOR + name;
+    }
+
+    private static final class Candidate {
+
+        private final String name;
+        private final int count;
+        private final int index;
+
+        private Candidate(@NotNull String name, int count, int index) {
+            this.name = name;
+            this.count = count;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package net.okocraft.chestshopsearcher.command;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ChestShopのアイテムのIDから作った補完用の名前を、データフォルダのファイルに保存しておくキャッシュ。
+ * <p>
+ * アイテムのメタデータの復元は重いので、一度名前にしたIDは次の起動からファイルから読むだけにする。
+ * 起動時にはキャッシュに無いIDだけを名前にして末尾に追記する。
+ * 復元できなかったIDは保存せず、次の起動でもう一度試す。
+ * <p>
+ * ファイルの形式は、ヘッダ (マジックナンバー、形式の版、エントリの数) の後に
+ * エントリ (ID、名前のUTF-8のバイト数、名前のバイト列) が並ぶ。
+ * スレッドセーフではない。
+ */
+final class ItemNameCache {
+
+    private static final int MAGIC = 0x43535349;
+    /** 2から復元できなかったIDを空の名前で持たなくなった。 */
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 12;
+
+    private final Path path;
+    private final Map<Integer, String> names = new HashMap<>();
+    /** ファイルの中で、読み込めたエントリの終わりの位置。追記はここから行う。 */
+    private long end;
+    /** ファイルを追記ではなく書き直す必要があるかどうか。 */
+    private boolean rewrite = true;
+
+    private ItemNameCache(@NotNull Path path) {
+        this.path = path;
+    }
+
+    /**
+     * 空のキャッシュを作る。保存するとファイルを書き直す。
+     *
+     * @param path キャッシュのファイル
+     * @return 空のキャッシュ
+     */
+    @NotNull
+    static ItemNameCache empty(@NotNull Path path) {
+        return new ItemNameCache(path);
+    }
+
+    /**
+     * ファイルからキャッシュを読み込む。ファイルが無いか壊れている場合は空のキャッシュを返す。
+     *
+     * @param path キャッシュのファイル
+     * @return キャッシュ
+     * @throws IOException ファイルを読めなかったとき
+     */
+    @NotNull
+    static ItemNameCache load(@NotNull Path path) throws IOException {
+        ItemNameCache cache = empty(path);
+        if (!Files.isRegularFile(path)) {
+            return cache;
+        }
+
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return cache;
+            }
+            // 一度の読み込みで全体をヒープの外のバッファに移し、エントリはそこから直接読む。
+            buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // 全て読むまで続ける。
+            }
+            buffer.flip();
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            return cache;
+        }
+        int count = buffer.getInt();
+        byte[] bytes = new byte[256];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < Integer.BYTES + Short.BYTES) {
+                return cache.reset();
+            }
+            int id = buffer.getInt();
+            int length = Short.toUnsignedInt(buffer.getShort());
+            if (length == 0 || buffer.remaining() < length) {
+                return cache.reset();
+            }
+            if (bytes.length < length) {
+                bytes = new byte[length];
+            }
+            buffer.get(bytes, 0, length);
+            cache.names.put(id, new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        cache.end = buffer.position();
+        cache.rewrite = false;
+        return cache;
+    }
+
+    /**
+     * 名前にしたIDの数を取得する。
+     *
+     * @return IDの数
+     */
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * IDを名前にしてあるかどうか。
+     *
+     * @param id アイテムのID
+     * @return 名前にしてあればtrue
+     */
+    boolean contains(int id) {
+        return names.containsKey(id);
+    }
+
+    /**
+     * 全ての名前を取得する。
+     *
+     * @return 名前のリスト
+     */
+    @NotNull
+    List<String> getNames() {
+        return new ArrayList<>(names.values());
+    }
+
+    /**
+     * 全てのエントリを捨てる。次に {@link #save(Map)} したときにファイルを書き直す。
+     *
+     * @return このキャッシュ
+     */
+    @NotNull
+    ItemNameCache reset() {
+        names.clear();
+        end = 0;
+        rewrite = true;
+        return this;
+    }
+
+    /**
+     * 新しく名前にしたIDを加えてファイルに保存する。ファイルが使える場合は末尾に追記し、ヘッダを更新する。
+     *
+     * @param added 新しく名前にしたIDと名前。空の名前は保存しない
+     * @throws IOException ファイルに書き込めなかったとき
+     */
+    void save(@NotNull Map<Integer, String> added) throws IOException {
+        List<byte[]> encoded = new ArrayList<>();
+        List<Integer> ids = new ArrayList<>();
+        int entriesSize = 0;
+        for (Map.Entry<Integer, String> entry : added.entrySet()) {
+            byte[] name = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            if (name.length == 0 || name.length > 0xFFFF || names.containsKey(entry.getKey())) {
+                continue;
+            }
+            ids.add(entry.getKey());
+            encoded.add(name);
+            entriesSize += Integer.BYTES + Short.BYTES + name.length;
+            names.put(entry.getKey(), entry.getValue());
+        }
+        if (ids.isEmpty() && !rewrite) {
+            return;
+        }
+
+        if (rewrite) {
+            writeAll();
+            return;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(entriesSize);
+        for (int i = 0; i < ids.size(); i++) {
+            putEntry(entries, ids.get(i), encoded.get(i));
+        }
+        entries.flip();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            // 前回の書き込みが途中で止まっていた場合に備えて、読み込めたエントリの後ろを捨ててから追記する。
+            channel.truncate(end);
+            writeFully(channel, entries, end);
+            end += entriesSize;
+            channel.force(false);
+            writeFully(channel, header(), 0);
+        }
+    }
+
+    private void writeAll() throws IOException {
+        int size = HEADER_SIZE;
+        List<byte[]> encoded = new ArrayList<>(names.size());
+        for (String name : names.values()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            size += Integer.BYTES + Short.BYTES + bytes.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(header());
+        int i = 0;
+        for (Integer id : names.keySet()) {
+            putEntry(buffer, id, encoded.get(i++));
+        }
+        buffer.flip();
+
+        Files.createDirectories(path.getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, buffer, 0);
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        end = size;
+        rewrite = false;
+    }
+
+    @NotNull
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(names.size());
+        return header.flip();
+    }
+
+    private static void putEntry(@NotNull ByteBuffer buffer, int id, @NotNull byte[] name) {
+        buffer.putInt(id).putShort((short) name.length).put(name);
+    }
+
+    private static void writeFully(@NotNull FileChannel channel, @NotNull ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
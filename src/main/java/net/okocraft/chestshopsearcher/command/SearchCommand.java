@@ -1,41 +1,41 @@
 package net.okocraft.chestshopsearcher.command;
 
-import java.io.IOException;
-import java.sql.SQLException;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
 
 import com.Acrobot.Breeze.Utils.MaterialUtil;
-import com.Acrobot.Breeze.Utils.Encoding.Base62;
-import com.Acrobot.ChestShop.ChestShop;
-import com.Acrobot.ChestShop.Database.DaoCreator;
-import com.Acrobot.ChestShop.Database.Item;
 import com.Acrobot.ChestShop.Events.ItemParseEvent;
-import com.Acrobot.ChestShop.Events.ShopCreatedEvent;
-import com.Acrobot.ChestShop.ORMlite.dao.CloseableIterator;
-import com.Acrobot.ChestShop.Signs.ChestShopSign;
-import com.Acrobot.ChestShop.UUIDs.NameManager;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
-import org.bukkit.OfflinePlayer;
-import org.bukkit.World;
 import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.util.StringUtil;
 
+import net.okocraft.chestshopsearcher.config.Config;
+import net.okocraft.chestshopsearcher.database.OwnerDirectory;
+import net.okocraft.chestshopsearcher.database.SearchCursor;
+import net.okocraft.chestshopsearcher.database.SearchOrder;
+import net.okocraft.chestshopsearcher.database.SearchQuery;
 import net.okocraft.chestshopsearcher.database.Shop;
+import net.okocraft.chestshopsearcher.database.ShopIndex;
 import net.okocraft.chestshopsearcher.database.ShopManager;
+import net.okocraft.chestshopsearcher.database.ShopSearcher;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -53,265 +53,280 @@ import org.jetbrains.annotations.Nullable;
 public final class SearchCommand extends BaseCommand implements Listener {
 
     private static final List<String> ALL_PARAMS = List.of("world", "x", "y", "z", "item", "owner", "stock", "quantity",
-            "sell_price", "buy_price");
-    private final Map<CommandSender, List<Shop>> previousSearchResult = new HashMap<>();
-    @NotNull
-    private final List<String> allItems;
-    @NotNull
-    private final List<String> offlinePlayers;
+            "sell_price", "buy_price", "sort", "limit", "near", "nearest");
+    private static final Map<String, SearchOrder.Kind> SORT_KINDS = Map.of(
+            "unit_price", SearchOrder.Kind.UNIT_PRICE,
+            "sell_price", SearchOrder.Kind.SELL_PRICE,
+            "stock", SearchOrder.Kind.STOCK,
+            "distance", SearchOrder.Kind.DISTANCE);
+    private static final int PAGE_SIZE = 8;
+
+    private static final SearchSessionCache SESSIONS = new SearchSessionCache(
+            Config.getInstance().getSearchSessionMaximumSize(),
+            Config.getInstance().getSearchSessionIdleTimeout());
 
     @EventHandler
-    public void onShopCreate(@NotNull ShopCreatedEvent event) {
-        String playerName = event.getPlayer().getName();
-        if (!offlinePlayers.contains(playerName) && !playerName.equals("Admin Shop")) {
-            offlinePlayers.add(playerName);
-        }
-        String item = event.getSignLine(ChestShopSign.ITEM_LINE).replaceAll(" ", "_");
-        if (!allItems.contains(item)) {
-            allItems.add(item);
-        }
+    public void onPlayerQuit(@NotNull PlayerQuitEvent event) {
+        SESSIONS.invalidate(event.getPlayer().getUniqueId());
+        SearchExecutor.getInstance().cancel(event.getPlayer().getUniqueId());
     }
 
-    @SuppressWarnings("serial")
-    private final Set<String> chestShopItemIds = new HashSet<String>() {
-        {
-            try (CloseableIterator<Item> it = DaoCreator.getDao(Item.class).closeableIterator()) {
-                while (it.hasNext()) {
-                    add(codeToName(Base62.encode(it.next().getId())));
-                }
-            } catch (@NotNull SQLException | IOException ignored) {
-            }
-
-            for (Material material : Material.values()) {
-                add(material.name());
-            }
-        }
-    };
+    @EventHandler
+    public void onWorldLoad(@NotNull WorldLoadEvent event) {
+        CompletionIndex.getInstance().addWorld(event.getWorld().getName());
+    }
 
     @EventHandler
     public void onItemParse(@NotNull ItemParseEvent event) {
         if (event.getItem().hasItemMeta()) {
-            chestShopItemIds.add(codeToName(MaterialUtil.Metadata.getItemCode(event.getItem())));
-        }
-    }
-
-    @NotNull
-    private String codeToName(@NotNull String code) {
-        ItemStack item = ChestShop.getItemDatabase().getFromCode(code);
-        if (item == null) {
-            return "";
+            // イベントのアイテムをそのまま使い、アイテムのコードを復元し直さない。
+            CompletionIndex.getInstance().addItem(CompletionIndex.getItemName(event.getItem(), MaterialUtil.Metadata.getItemCode(event.getItem())));
         }
-
-        return item.getType().name() + "#" + code;
     }
 
     protected SearchCommand() {
         super("chestshopsearcher.search", 1, true, true,
                 // /css search column=str column=v1..v2 ...
                 "/css search <condition...>");
-        
-        Set<String> allItems = new HashSet<>();
-        Set<String> offlinePlayers = new HashSet<>();
-        for (Shop shop : ShopManager.getInstance().getAll()) {
-            String ownerName;
-            try {
-                UUID ownerUniqueId = UUID.fromString(shop.getOwnerUniqueId());
-                if (NameManager.isAdminShop(ownerUniqueId)) {
-                    ownerName = "Admin_Shop";
-                } else {
-                    ownerName = Bukkit.getOfflinePlayer(ownerUniqueId).getName();
-                }
-            } catch (IllegalArgumentException e) {
-                ownerName = null;
-            }
-            if (ownerName != null) {
-                offlinePlayers.add(ownerName);
-            }
-            allItems.add(shop.getItem().replaceAll(" ", "_"));
-        }
-        this.allItems = new ArrayList<>(allItems);
-        this.offlinePlayers = new ArrayList<>(offlinePlayers);
+
+        // タブ補完に使う名前は Main で CompletionIndex#warmUp() から別のスレッドで読み込む。
+        Bukkit.getPluginManager().registerEvents(this, PLUGIN);
+    }
+
+    /**
+     * 実行者ごとの前回の検索のキャッシュを取得する。
+     *
+     * @return 検索のキャッシュ
+     */
+    @NotNull
+    static SearchSessionCache getSessions() {
+        return SESSIONS;
     }
 
     @Override
     public boolean runCommand(@NotNull CommandSender sender, @NotNull String[] args) {
         // if no condition. (only /css search)
         if (args.length == 1) {
-            List<Shop> shops = ShopManager.getInstance().getAll();
-            previousSearchResult.put(sender, shops);
-            showResult(sender, shops, 1);
+            SearchCursor cursor = new SearchCursor(getSearcher(), new SearchQuery(), PAGE_SIZE);
+            SESSIONS.put(sender, cursor);
+            showResult(sender, cursor, 1);
             return true;
         }
 
         try {
             int page = Integer.parseInt(args[1]);
-            showResult(sender, previousSearchResult.getOrDefault(sender, List.of()), page);
+            showResult(sender, SESSIONS.get(sender), page);
             return true;
         } catch (NumberFormatException ignored) {
         }
         // if args[2] is not integer.
 
         Map<String, String> params = parseArgs(args);
-
-        @SuppressWarnings("serial")
-        List<String> conditions = new ArrayList<String>() {{
-            add(getOwnerCondtion(params.get("owner")));
-            add(getItemCondition(params.get("item")));
-            add(getValueRangeCondition("buy_price", getDoubleRangeArg(params, "buy_price")));
-            add(getValueRangeCondition("sell_price", getDoubleRangeArg(params, "sell_price")));
-            add(getValueRangeCondition("stock", getIntRangeArg(params, "stock")));
-            add(getValueRangeCondition("quantity", getIntRangeArg(params, "quantity")));
-        }};
-        
-        String where = "";
-        if (!conditions.isEmpty()) {
-            for (String condition : conditions) {
-                where = where + condition;
-            }
-
-            where = where.replaceAll("^ and", " where");
-        }
-        List<Shop> shops = ShopManager.getInstance().select("select c from Shop c" + where);
-        if (shops == null) {
-            shops = new ArrayList<>();
+        if (params.containsKey("world") && Bukkit.getWorld(params.get("world")) == null) {
+            MESSAGES.sendNoWorld(sender);
+            return false;
         }
 
-        // x[0] = min, x[1] = max
-        Integer[] x = getIntRangeArg(params, "x");
-        Integer[] y = getIntRangeArg(params, "y");
-        Integer[] z = getIntRangeArg(params, "z");
-        shops.removeIf(shop -> {
-            Location shopLocation = ShopManager.fromDBKey(shop.getLocation());
-            if (shopLocation.getWorld() == null) {
+        UUID owner = null;
+        if (params.containsKey("owner")) {
+            CompletableFuture<UUID> request = OwnerDirectory.getInstance().requestUniqueId(toAccountName(params.get("owner")));
+            if (!request.isDone()) {
+                // 辞書に無い持ち主はChestShopのアカウントを別のスレッドで読み、読み終わったらもう一度実行する。
+                request.whenComplete((uuid, e) -> {
+                    // プラグインが止まった後は登録できないので、実行し直さない。
+                    if (!PLUGIN.isEnabled()) {
+                        return;
+                    }
+                    Bukkit.getScheduler().runTask(PLUGIN, () -> {
+                        if (e != null) {
+                            MESSAGES.sendNoPlayerFound(sender, params.get("owner"));
+                        } else {
+                            runCommand(sender, args);
+                        }
+                    });
+                });
                 return true;
             }
-
-            if (params.containsKey("world")) {
-                World world = Bukkit.getWorld(params.get("world"));
-                if (world != null && !shopLocation.getWorld().equals(world)) {
-                    return true;
-                }
+            owner = request.getNow(null);
+            if (owner == null) {
+                MESSAGES.sendNoPlayerFound(sender, params.get("owner"));
+                return false;
             }
+        }
 
-            if (x != null && (shopLocation.getBlockX() < x[0] || shopLocation.getBlockX() > x[1])) {
-                return true;
+        SearchQuery query = new SearchQuery()
+                .world(params.get("world"))
+                .x(getIntRangeArg(params, "x"))
+                .y(getIntRangeArg(params, "y"))
+                .z(getIntRangeArg(params, "z"))
+                .owner(owner)
+                .item(getItemName(params.get("item")))
+                .buyPrice(getDecimalRangeArg(params, "buy_price"))
+                .sellPrice(getDecimalRangeArg(params, "sell_price"))
+                .stock(getIntRangeArg(params, "stock"))
+                .quantity(getIntRangeArg(params, "quantity"));
+
+        SearchOrder order = null;
+        SearchOrder.Kind sortKind = params.containsKey("sort") ? SORT_KINDS.get(params.get("sort")) : null;
+        if (params.containsKey("nearest")) {
+            // nearest は距離の順に並べるので、別の並び順とは一緒に使えない。
+            if (sortKind != null && sortKind != SearchOrder.Kind.DISTANCE) {
+                MESSAGES.sendInvalidArgument(sender, "sort");
+                return false;
             }
-
-            if (y != null && (shopLocation.getBlockY() < y[0] || shopLocation.getBlockY() > y[1])) {
-                return true;
+            sortKind = SearchOrder.Kind.DISTANCE;
+        }
+        if (sortKind == SearchOrder.Kind.DISTANCE || params.containsKey("near")) {
+            // 位置を使う条件は実行者のいるワールドで検索する。
+            if (!(sender instanceof Player)) {
+                MESSAGES.sendConsoleSenderCannotUse(sender);
+                return false;
+            }
+            Location location = ((Player) sender).getLocation();
+            String world = Objects.requireNonNull(location.getWorld()).getName();
+            if (query.getWorld() != null && !query.getWorld().equals(world)) {
+                MESSAGES.sendInvalidArgument(sender, "world");
+                return false;
             }
+            query.world(world);
 
-            if (z != null && (shopLocation.getBlockZ() < z[0] || shopLocation.getBlockZ() > z[1])) {
-                return true;
+            if (params.containsKey("near")) {
+                // ワールドの端より広い半径は意味が無く、座標の計算があふれるので切り詰める。
+                int radius = Math.min(Integer.parseInt(params.get("near")), 30_000_000);
+                query.x(new SearchQuery.Range<>(location.getBlockX() - radius, location.getBlockX() + radius))
+                        .z(new SearchQuery.Range<>(location.getBlockZ() - radius, location.getBlockZ() + radius));
+            }
+            if (sortKind == SearchOrder.Kind.DISTANCE) {
+                order = SearchOrder.distance(location.getBlockX(), location.getBlockY(), location.getBlockZ());
             }
+        } else if (sortKind != null) {
+            order = SearchOrder.of(sortKind);
+        }
 
-            return false;
-        });
+        SearchCursor cursor;
+        int maxLimit = Math.max(1, Config.getInstance().getSearchMaxLimit());
+        String limitArg = params.containsKey("nearest") ? params.get("nearest") : params.get("limit");
+        if (order == null && limitArg == null) {
+            cursor = new SearchCursor(getSearcher(), query, PAGE_SIZE);
+        } else {
+            int limit = limitArg != null ? Math.min(Integer.parseInt(limitArg), maxLimit) : maxLimit;
+            cursor = new SearchCursor(getSearcher(), query, order != null ? order : SearchOrder.of(SearchOrder.Kind.LOCATION), limit, PAGE_SIZE);
+        }
 
-        previousSearchResult.put(sender, shops);
+        SESSIONS.put(sender, cursor);
 
-        showResult(sender, shops, 1);
+        showResult(sender, cursor, 1);
         return true;
     }
 
-    private void showResult(@NotNull CommandSender sender, @NotNull List<Shop> shops, int page) {
-        MESSAGES.sendSearchResultHeader(sender);
-        if (page <= 0) {
+    /**
+     * 結果の1ページ分だけを検索スレッドで検索し、メインスレッドで表示する。前の検索が無い場合は空の結果を表示する。
+     */
+    private void showResult(@NotNull CommandSender sender, @Nullable SearchCursor cursor, int page) {
+        if (cursor == null) {
+            MESSAGES.sendSearchResultHeader(sender, page, 0, 0);
+            MESSAGES.sendSpecifyPageToSeeMore(sender);
             return;
         }
 
-        for (int i = (page - 1) * 8; i < shops.size() && i < page * 8; i++) {
-            MESSAGES.sendSearchResultLine(sender, shops.get(i));
-        }
-
-        MESSAGES.sendSpecifyPageToSeeMore(sender);
-    }
-
-    @Nullable
-    private Integer[] getIntRangeArg(@NotNull Map<String, String> params, String arg) {
-        Integer[] result = new Integer[2];
-        if (params.containsKey(arg)) {
-            String[] split = params.get(arg).split("\\.\\.");
-            try {
-                result[0] = Integer.parseInt(split[0]);
-            } catch (NumberFormatException e) {
-                result[0] = null;
+        boolean accepted = SearchExecutor.getInstance().submit(sender, () -> {
+            SearchCursor.Page result = cursor.read(page);
+            // 表示するショップの持ち主の名前は、メインスレッドで引く前に辞書に読み込んでおく。
+            Set<UUID> owners = new HashSet<>();
+            for (Shop shop : result.getShops()) {
+                owners.add(shop.getOwnerUniqueId());
             }
-            try {
-                result[1] = Integer.parseInt(split[1]);
-            } catch (NumberFormatException e) {
-                result[1] = null;
+            OwnerDirectory.getInstance().requestNames(owners).join();
+            return result;
+        }, result -> {
+            MESSAGES.sendSearchResultHeader(sender, result.getNumber(), result.getPageCount(), result.getTotal());
+            if (result.getNumber() <= 0) {
+                return;
             }
-        } else {
-            return null;
-        }
-        return result;
-    }
 
-    @Nullable
-    private Double[] getDoubleRangeArg(@NotNull Map<String, String> params, String arg) {
-        Double[] result = new Double[2];
-        if (params.containsKey(arg)) {
-            String[] split = params.get(arg).split("\\.\\.");
-            try {
-                result[0] = Double.parseDouble(split[0]);
-            } catch (NumberFormatException e) {
-                result[0] = null;
-            }
-            try {
-                result[1] = Double.parseDouble(split[1]);
-            } catch (NumberFormatException e) {
-                result[1] = null;
+            for (Shop shop : result.getShops()) {
+                MESSAGES.sendSearchResultLine(sender, shop);
             }
-        } else {
-            return null;
+
+            MESSAGES.sendSpecifyPageToSeeMore(sender);
+        });
+        if (!accepted) {
+            MESSAGES.sendSearchBusy(sender);
         }
-        return result;
     }
 
     @NotNull
-    @SuppressWarnings("deprecation")
-    private String getOwnerCondtion(@Nullable String ownerName) {
-        if (ownerName == null || ownerName.isBlank()) {
-            return "";
+    private static ShopSearcher getSearcher() {
+        if ("database".equalsIgnoreCase(Config.getInstance().getSearchEngine())) {
+            return ShopManager.getInstance();
         }
-
-        String ownerUniqueId = Bukkit.getOfflinePlayer(ownerName.equalsIgnoreCase("admin_shop") ? "Admin Shop" : ownerName).getUniqueId().toString();
-
-        return " and c.ownerUniqueId='" + ownerUniqueId + "'";
+        return ShopIndex.getInstance();
     }
 
-    @NotNull
-    private String getValueRangeCondition(@Nullable String field, @Nullable Number[] range) {
-        if (field == null || field.isBlank() || range == null || range.length != 2 || (range[0] == null && range[1] == null)) {
-            return "";
+    @Nullable
+    private SearchQuery.Range<Integer> getIntRangeArg(@NotNull Map<String, String> params, String arg) {
+        if (!params.containsKey(arg)) {
+            return null;
         }
 
-        if (range[0] != null && range[1] == null) {
-            return " and c." + field + " >= " + range[0];
-
-        } else if (range[0] == null && range[1] != null) {
-            return " and c." + field + " <= " + range[1];
+        String[] split = params.get(arg).split("\\.\\.");
+        Integer min;
+        Integer max;
+        try {
+            min = Integer.parseInt(split[0]);
+        } catch (NumberFormatException e) {
+            min = null;
+        }
+        try {
+            max = Integer.parseInt(split[1]);
+        } catch (NumberFormatException e) {
+            max = null;
+        }
+        return new SearchQuery.Range<>(min, max);
+    }
 
-        } else if (range[0] != null && range[1] != null) {
-            return " and (c." + field + " between " + range[0] + " and " + range[1] + ")";
+    @Nullable
+    private SearchQuery.Range<BigDecimal> getDecimalRangeArg(@NotNull Map<String, String> params, String arg) {
+        if (!params.containsKey(arg)) {
+            return null;
         }
 
-        return "";
+        String[] split = params.get(arg).split("\\.\\.");
+        BigDecimal min;
+        BigDecimal max;
+        try {
+            min = new BigDecimal(split[0]);
+        } catch (NumberFormatException e) {
+            min = null;
+        }
+        try {
+            max = new BigDecimal(split[1]);
+        } catch (NumberFormatException e) {
+            max = null;
+        }
+        return new SearchQuery.Range<>(min, max);
     }
 
+    /**
+     * 補完に使う持ち主の名前を、ChestShopのアカウントの名前にする。
+     */
     @NotNull
-    private String getItemCondition(@Nullable String item) {
+    private static String toAccountName(@NotNull String ownerName) {
+        return ownerName.equalsIgnoreCase("admin_shop") ? "Admin Shop" : ownerName;
+    }
+
+    @Nullable
+    private String getItemName(@Nullable String item) {
         if (item == null || item.isBlank()) {
-            return "";
+            return null;
         }
 
         ItemStack itemStack = MaterialUtil.getItem(item);
         if (itemStack == null) {
-            return "";
+            return null;
         }
 
-        return " and c.item='" + MaterialUtil.getName(itemStack) + "'";
+        return MaterialUtil.getName(itemStack);
     }
 
     /**
@@ -349,12 +364,8 @@ public final class SearchCommand extends BaseCommand implements Listener {
             }
         }
         if (column.equals("owner")) {
-            if (value == null || value.isEmpty()) {
-                return false;
-            }
-            @SuppressWarnings("deprecation")
-            OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(value);
-            return offlinePlayer.hasPlayedBefore() && offlinePlayer.getName() != null;
+            // タブ補完のたびに呼ばれるので持ち主は探さず、名前として使える文字列かだけを調べる。持ち主は実行するときに探す。
+            return value.matches("[a-zA-Z0-9_]{1,16}");
         }
         if (column.equals("sell_price") || column.equals("buy_price")) {
             try {
@@ -364,6 +375,16 @@ public final class SearchCommand extends BaseCommand implements Listener {
                 return false;
             }
         }
+        if (column.equals("sort")) {
+            return SORT_KINDS.containsKey(value);
+        }
+        if (column.equals("limit") || column.equals("near") || column.equals("nearest")) {
+            try {
+                return Integer.parseInt(value) > 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
         if (column.equals("stock") || column.equals("quantity") || column.equals("x") || column.equals("y")
                 || column.equals("z")) {
             try {
@@ -407,17 +428,28 @@ public final class SearchCommand extends BaseCommand implements Listener {
             return StringUtil.copyPartialMatches(arg, List.of("1..1000", "10.0..1000.0"), new ArrayList<>());
         }
 
+        if (column.equals("sort")) {
+            return StringUtil.copyPartialMatches(arg, SORT_KINDS.keySet(), new ArrayList<>());
+        }
+
+        if (column.equals("limit") || column.equals("nearest")) {
+            return StringUtil.copyPartialMatches(arg, List.of("10", "50", "100"), new ArrayList<>());
+        }
+
+        if (column.equals("near")) {
+            return StringUtil.copyPartialMatches(arg, List.of("16", "64", "256"), new ArrayList<>());
+        }
+
         if (column.equals("owner")) {
-            return StringUtil.copyPartialMatches(arg, offlinePlayers, new ArrayList<>());
+            return CompletionIndex.getInstance().completeOwners(arg);
         }
 
         if (column.equals("item")) {
-            return StringUtil.copyPartialMatches(arg, chestShopItemIds, new ArrayList<>());
+            return CompletionIndex.getInstance().completeItems(arg);
         }
 
         if (column.equals("world")) {
-            List<String> worlds = Bukkit.getWorlds().stream().map(World::getName).collect(Collectors.toList());
-            return StringUtil.copyPartialMatches(arg, worlds, new ArrayList<>());
+            return CompletionIndex.getInstance().completeWorlds(arg);
         }
 
         if (column.equals("x") || column.equals("y") || column.equals("z")) {
@@ -0,0 +1,150 @@
+package net.okocraft.chestshopsearcher.command;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import org.bukkit.Bukkit;
+import org.bukkit.command.CommandSender;
+
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.config.Config;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 検索を専用のスレッドで実行し、結果をメインスレッドで実行者に届ける。
+ * <p>
+ * 一人の実行者が同時に実行できる検索は一つだけで、新しい検索を始めると実行中の前の検索は取り消す。
+ * プレイヤーがログアウトした場合も取り消す。取り消した検索は次の段階に進む前に止まり、結果は届けない。
+ * 待ち行列が一杯の場合は検索を受け付けない。
+ */
+public final class SearchExecutor {
+
+    private static final SearchExecutor INSTANCE = new SearchExecutor();
+
+    private final ThreadPoolExecutor executor;
+    private final Map<UUID, SearchTask<?>> inFlight = new ConcurrentHashMap<>();
+
+    private SearchExecutor() {
+        int threads = Math.max(1, Config.getInstance().getSearchThreads());
+        AtomicInteger threadNumber = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, Config.getInstance().getSearchQueueSize())), runnable -> {
+                    Thread thread = new Thread(runnable, "ChestShopSearcher-Search-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @NotNull
+    public static SearchExecutor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 検索を実行し、結果をメインスレッドで渡す。実行者の前の検索がまだ終わっていなければ取り消す。
+     *
+     * @param sender   実行者
+     * @param search   検索スレッドで実行する処理
+     * @param delivery メインスレッドで結果を受け取る処理
+     * @param <R>      結果の型
+     * @return 受け付けたらtrue。待ち行列が一杯の場合はfalse
+     */
+    <R> boolean submit(@NotNull CommandSender sender, @NotNull Callable<R> search, @NotNull Consumer<R> delivery) {
+        UUID key = SearchSessionCache.toKey(sender);
+        SearchTask<R> task = new SearchTask<>(key, search, delivery);
+        SearchTask<?> previous = inFlight.put(key, task);
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key, task);
+            return false;
+        }
+    }
+
+    /**
+     * プレイヤーの実行中の検索を取り消す。
+     *
+     * @param uniqueId プレイヤーのUUID
+     */
+    void cancel(@NotNull UUID uniqueId) {
+        SearchTask<?> task = inFlight.remove(uniqueId);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * 実行中または待っている検索の数を取得する。
+     *
+     * @return 実行中または待っている検索の数
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * 全ての検索を取り消してスレッドを止める。
+     */
+    public void shutdown() {
+        inFlight.values().forEach(SearchTask::cancel);
+        inFlight.clear();
+        executor.shutdownNow();
+    }
+
+    private final class SearchTask<R> implements Runnable {
+
+        private final UUID key;
+        private final Callable<R> search;
+        private final Consumer<R> delivery;
+        private volatile boolean cancelled;
+
+        private SearchTask(@NotNull UUID key, @NotNull Callable<R> search, @NotNull Consumer<R> delivery) {
+            this.key = key;
+            this.search = search;
+            this.delivery = delivery;
+        }
+
+        private void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            R result;
+            try {
+                result = search.call();
+            } catch (Exception e) {
+                inFlight.remove(key, this);
+                Main.getInstance().getLogger().log(Level.WARNING, "Failed to search shops.", e);
+                return;
+            }
+
+            if (cancelled || !Main.getInstance().isEnabled()) {
+                return;
+            }
+            Bukkit.getScheduler().runTask(Main.getInstance(), () -> {
+                if (!cancelled && inFlight.remove(key, this)) {
+                    delivery.accept(result);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package net.okocraft.chestshopsearcher.command;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import net.okocraft.chestshopsearcher.database.SearchCursor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 実行者ごとの前回の検索を覚えておくキャッシュ。
+ * <p>
+ * キーはプレイヤーのUUIDで、コンソールやコマンドブロックなどプレイヤー以外の実行者には実行者ごとに別のUUIDを割り当てる。
+ * 値は {@link SearchCursor} で、検索条件と各ページの最後の location だけを持ち、ショップそのものは持たない。
+ * 件数の上限を超えると最も長く使われていないものから追い出し、一定時間使われなかったものも追い出す。
+ */
+final class SearchSessionCache {
+
+    /** プレイヤー以外の実行者に割り当てたUUID。実行者が使われなくなったら一緒に消えるように弱い参照で持つ。 */
+    private static final Map<CommandSender, UUID> NON_PLAYER_IDS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int maximumSize;
+    private final long idleTimeoutMillis;
+    private final Map<UUID, Session> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    SearchSessionCache(int maximumSize, long idleTimeoutMillis) {
+        this.maximumSize = Math.max(1, maximumSize);
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 実行者の前回の検索を取得する。
+     *
+     * @param sender 実行者
+     * @return 前回の検索。無いか期限切れの場合はnull
+     */
+    @Nullable
+    synchronized SearchCursor get(@NotNull CommandSender sender) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        Session session = sessions.get(toKey(sender));
+        if (session == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        session.lastAccess = now;
+        return session.cursor;
+    }
+
+    /**
+     * 実行者の検索を保存する。
+     *
+     * @param sender 実行者
+     * @param cursor 検索
+     */
+    synchronized void put(@NotNull CommandSender sender, @NotNull SearchCursor cursor) {
+        long now = System.currentTimeMillis();
+        expire(now);
+        sessions.put(toKey(sender), new Session(cursor, now));
+        Iterator<Session> it = sessions.values().iterator();
+        while (sessions.size() > maximumSize && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * プレイヤーの検索を捨てる。
+     *
+     * @param uniqueId プレイヤーのUUID
+     */
+    synchronized void invalidate(@NotNull UUID uniqueId) {
+        if (sessions.remove(uniqueId) != null) {
+            evictionCount++;
+        }
+    }
+
+    synchronized int size() {
+        return sessions.size();
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * 一定時間使われていない検索を追い出す。アクセス順に並んでいるので、期限内のものが出た時点で止める。
+     */
+    private void expire(long now) {
+        if (idleTimeoutMillis <= 0) {
+            return;
+        }
+        Iterator<Session> it = sessions.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().lastAccess < idleTimeoutMillis) {
+                return;
+            }
+            it.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * 実行者を表すキーを取得する。{@link SearchExecutor} の実行者ごとの検索の数の制限にも使う。
+     *
+     * @param sender 実行者
+     * @return プレイヤーならそのUUID。それ以外は実行者ごとに割り当てたUUID
+     */
+    @NotNull
+    static UUID toKey(@NotNull CommandSender sender) {
+        if (sender instanceof Player) {
+            return ((Player) sender).getUniqueId();
+        }
+        return NON_PLAYER_IDS.computeIfAbsent(sender, key -> UUID.randomUUID());
+    }
+
+    private static final class Session {
+
+        private final SearchCursor cursor;
+        private long lastAccess;
+
+        private Session(@NotNull SearchCursor cursor, long lastAccess) {
+            this.cursor = cursor;
+            this.lastAccess = lastAccess;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package net.okocraft.chestshopsearcher.command;
+
+import java.util.List;
+import java.util.Map;
+
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import org.bukkit.command.CommandSender;
+
+import net.okocraft.chestshopsearcher.database.ShopManager;
+import net.okocraft.chestshopsearcher.database.ShopWriter;
+import org.jetbrains.annotations.NotNull;
+
+public final class StatsCommand extends BaseCommand {
+
+    protected StatsCommand() {
+        super(
+                "chestshopsearcher.stats",
+                1,
+                true,
+                true,
+                "/css stats"
+        );
+    }
+
+    @Override
+    public boolean runCommand(@NotNull CommandSender sender, String[] args) {
+        MESSAGES.sendMessage(sender, "command.stats.header");
+
+        ShopWriter writer = ShopWriter.getInstance();
+        MESSAGES.sendMessage(sender, false, "command.stats.writer", Map.of(
+                "%received%", String.valueOf(writer.getReceivedCount()),
+                "%written%", String.valueOf(writer.getWrittenCount()),
+                "%pending%", String.valueOf(writer.getPendingCount()),
+                "%coalesced%", String.valueOf(writer.getCoalescedCount()),
+                "%cancelled%", String.valueOf(writer.getCancelledCount())));
+
+        SearchSessionCache sessions = SearchCommand.getSessions();
+        MESSAGES.sendMessage(sender, false, "command.stats.sessions", Map.of(
+                "%size%", String.valueOf(sessions.size()),
+                "%hits%", String.valueOf(sessions.getHitCount()),
+                "%misses%", String.valueOf(sessions.getMissCount()),
+                "%evictions%", String.valueOf(sessions.getEvictionCount())));
+
+        HikariPoolMXBean pool = ShopManager.getInstance().getPoolStatistics();
+        if (pool != null) {
+            MESSAGES.sendMessage(sender, false, "command.stats.pool", Map.of(
+                    "%active%", String.valueOf(pool.getActiveConnections()),
+                    "%idle%", String.valueOf(pool.getIdleConnections()),
+                    "%total%", String.valueOf(pool.getTotalConnections()),
+                    "%waiting%", String.valueOf(pool.getThreadsAwaitingConnection())));
+        } else {
+            MESSAGES.sendMessage(sender, false, "command.stats.no-pool");
+        }
+        return true;
+    }
+
+    @Override
+    public List<String> runTabComplete(CommandSender sender, String[] args) {
+        return List.of();
+    }
+}
@@ -47,6 +47,95 @@ public class Config extends BaseConfig {
         return getConfig().getBoolean("database.sql-logging");
     }
 
+    public int getPoolMinimumIdle() {
+        return getConfig().getInt("database.pool.minimum-idle", 2);
+    }
+
+    public int getPoolMaximumSize() {
+        return getConfig().getInt("database.pool.maximum-pool-size", 10);
+    }
+
+    public long getPoolIdleTimeout() {
+        return getConfig().getLong("database.pool.idle-timeout-millis", 600000L);
+    }
+
+    public long getPoolConnectionTimeout() {
+        return getConfig().getLong("database.pool.connection-timeout-millis", 30000L);
+    }
+
+    public long getPoolValidationTimeout() {
+        return getConfig().getLong("database.pool.validation-timeout-millis", 5000L);
+    }
+
+    public String getPoolValidationQuery() {
+        return getConfig().getString("database.pool.validation-query", "");
+    }
+
+    public long getPoolLeakDetectionThreshold() {
+        return getConfig().getLong("database.pool.leak-detection-threshold-millis", 0L);
+    }
+
+    public int getPreparedStatementCacheSize() {
+        return getConfig().getInt("database.pool.prepared-statement-cache-size", 250);
+    }
+
+    public int getJdbcBatchSize() {
+        return getConfig().getInt("database.jdbc-batch-size", 100);
+    }
+
+    public int getBulkCommitSize() {
+        return getConfig().getInt("database.bulk-commit-size", 1000);
+    }
+
+    public int getWriteBehindBatchSize() {
+        return getConfig().getInt("database.write-behind.batch-size", 500);
+    }
+
+    public long getWriteBehindFlushInterval() {
+        return getConfig().getLong("database.write-behind.flush-interval-millis", 1000L);
+    }
+
+    /**
+     * 検索に使うエンジン。{@code memory} ならメモリ上のインデックス、{@code database} ならDBに問い合わせる。
+     *
+     * @return 検索エンジンの名前
+     */
+    public String getSearchEngine() {
+        return getConfig().getString("search.engine", "memory");
+    }
+
+    public int getSearchSessionMaximumSize() {
+        return getConfig().getInt("search.session.maximum-size", 200);
+    }
+
+    public long getSearchSessionIdleTimeout() {
+        return getConfig().getLong("search.session.idle-timeout-millis", 600000L);
+    }
+
+    public int getSearchThreads() {
+        return getConfig().getInt("search.threads", 2);
+    }
+
+    public int getSearchQueueSize() {
+        return getConfig().getInt("search.queue-size", 64);
+    }
+
+    public int getSearchMaxLimit() {
+        return getConfig().getInt("search.max-limit", 1000);
+    }
+
+    public int getSearchCompletionLimit() {
+        return getConfig().getInt("search.completion-limit", 50);
+    }
+
+    public int getOwnerCacheSize() {
+        return getConfig().getInt("search.owner-cache-size", 10000);
+    }
+
+    public int getItemHoverCacheSize() {
+        return getConfig().getInt("search.item-hover-cache-size", 1000);
+    }
+
     public void reloadAllConfigs() {
         Messages.getInstance().reload();
         reloadConfig();
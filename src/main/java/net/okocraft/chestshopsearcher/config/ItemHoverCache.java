@@ -0,0 +1,115 @@
+package net.okocraft.chestshopsearcher.config;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.Acrobot.Breeze.Utils.MaterialUtil;
+
+import org.bukkit.inventory.ItemStack;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.HoverEvent;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.ReflectionUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 検索結果に表示する、カーソルを合わせるとアイテムを見せるコンポーネントのキャッシュ。
+ * <p>
+ * キーはショップの看板に書かれたアイテムのコードで、値はアイテムをNBTのJSONにしてホバーに入れたコンポーネント。
+ * アイテムの復元とNMSでの変換は重く、検索結果には同じアイテムが何度も出てくるので、一度作ったものを使い回す。
+ * コンポーネントは作った後に変更しないので、複数の送信で同時に使ってよい。
+ * 件数の上限を超えると最も長く使われていないものから追い出す。どのスレッドからでも使える。
+ */
+final class ItemHoverCache {
+
+    private final int maximumSize;
+    private final Map<String, BaseComponent> components = new LinkedHashMap<>(16, 0.75f, true);
+
+    ItemHoverCache(int maximumSize) {
+        this.maximumSize = Math.max(1, maximumSize);
+    }
+
+    /**
+     * アイテムのコードからコンポーネントを取得する。無ければ作ってキャッシュに加える。
+     *
+     * @param itemCode ショップの看板に書かれたアイテムのコード
+     * @return アイテムを見せるコンポーネント。アイテムを復元できない場合はコードをそのまま表示するコンポーネント
+     */
+    @NotNull
+    BaseComponent get(@NotNull String itemCode) {
+        synchronized (this) {
+            BaseComponent component = components.get(itemCode);
+            if (component != null) {
+                return component;
+            }
+        }
+
+        // 作るのは重いのでロックの外で行う。同時に作られた場合は後から入れた方を残す。
+        ItemStack item = MaterialUtil.getItem(itemCode);
+        // 復元できないアイテムも、行ごとに復元し直さないようにコードだけのコンポーネントを覚えておく。
+        BaseComponent component = item != null ? toComponent(item) : new TextComponent(itemCode);
+        synchronized (this) {
+            components.put(itemCode, component);
+            Iterator<BaseComponent> it = components.values().iterator();
+            while (components.size() > maximumSize && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        return component;
+    }
+
+    /**
+     * キャッシュを空にする。
+     */
+    synchronized void clear() {
+        components.clear();
+    }
+
+    /**
+     * アイテムをNBTのJSONにして、ホバーでアイテムを見せるコンポーネントを作る。変換できない場合は名前だけのコンポーネントにする。
+     *
+     * @param item アイテム
+     * @return コンポーネント
+     */
+    @NotNull
+    private static BaseComponent toComponent(@NotNull ItemStack item) {
+        TextComponent text = new TextComponent(MaterialUtil.getName(item));
+        String json = toJson(item);
+        if (json != null) {
+            text.setHoverEvent(new HoverEvent(HoverEvent.Action.SHOW_ITEM, new BaseComponent[]{new TextComponent(json)}));
+        }
+        return text;
+    }
+
+    @Nullable
+    private static String toJson(@NotNull ItemStack item) {
+        Class<?> craftItemStack = ReflectionUtil.getOBCClass("inventory.CraftItemStack");
+        Class<?> nmsItemStack = ReflectionUtil.getNMSClass("ItemStack");
+        Class<?> nbtTagCompound = ReflectionUtil.getNMSClass("NBTTagCompound");
+        if (craftItemStack == null || nmsItemStack == null || nbtTagCompound == null) {
+            return null;
+        }
+        MethodHandle asNMSCopy = ReflectionUtil.getMethodHandle(craftItemStack, "asNMSCopy", ItemStack.class);
+        MethodHandle save = ReflectionUtil.getMethodHandle(nmsItemStack, "save", nbtTagCompound);
+        MethodHandle newCompound = ReflectionUtil.getConstructorHandle(nbtTagCompound);
+        if (asNMSCopy == null || save == null || newCompound == null) {
+            return null;
+        }
+
+        try {
+            Object nmsItem = asNMSCopy.invoke(item);
+            Object compound = save.invoke(nmsItem, newCompound.invoke());
+            return compound.toString();
+        } catch (Throwable t) {
+            Main.getInstance().getLogger().log(Level.SEVERE, "failed to serialize itemstack to nms item", t);
+            return null;
+        }
+    }
+}
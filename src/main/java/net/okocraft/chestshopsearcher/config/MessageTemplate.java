@@ -0,0 +1,131 @@
+package net.okocraft.chestshopsearcher.config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.ChatColor;
+
+import net.md_5.bungee.api.chat.BaseComponent;
+import net.md_5.bungee.api.chat.TextComponent;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 読み込み時に一度だけ解析したメッセージ。
+ * <p>
+ * メッセージを色コードを変換した文字列の部分とプレースホルダーの枠に分けて持ち、送るたびに解析し直さない。
+ * 文字列の部分のコンポーネントは作った後に変更しないので、全ての送信で同じものを使い回す。
+ * 枠はプレースホルダーの名前の順に番号を振り、値は番号で渡す。値が無い枠はプレースホルダーをそのまま表示する。
+ */
+final class MessageTemplate {
+
+    /** 文字列の部分か、プレースホルダーの枠。 */
+    private static final class Part {
+
+        /** 文字列の部分のコンポーネント。枠の場合は値が無いときに表示するプレースホルダー。 */
+        private final BaseComponent text;
+        /** 枠の番号。文字列の部分の場合は-1。 */
+        private final int slot;
+
+        private Part(@NotNull BaseComponent text, int slot) {
+            this.text = text;
+            this.slot = slot;
+        }
+    }
+
+    private final List<Part> parts;
+    private final List<String> slots;
+
+    private MessageTemplate(@NotNull List<Part> parts, @NotNull List<String> slots) {
+        this.parts = Collections.unmodifiableList(parts);
+        this.slots = Collections.unmodifiableList(slots);
+    }
+
+    /**
+     * メッセージを解析する。{@code slots} に無いプレースホルダーは、その後ろに見つけた順に番号を振る。
+     *
+     * @param rawMessage 色コードを変換していないメッセージ
+     * @param slots      番号を決めておくプレースホルダーの名前
+     * @return 解析したメッセージ
+     */
+    @NotNull
+    static MessageTemplate compile(@NotNull String rawMessage, @NotNull List<String> slots) {
+        String message = ChatColor.translateAlternateColorCodes('&', rawMessage);
+        List<String> names = new ArrayList<>(slots);
+        List<Part> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int index = 0;
+        while (true) {
+            int first = message.indexOf('%', index);
+            int second = first == -1 ? -1 : message.indexOf('%', first + 1);
+            if (second == -1) {
+                literal.append(message, index, message.length());
+                break;
+            }
+            literal.append(message, index, first);
+            if (literal.length() > 0) {
+                parts.add(new Part(new TextComponent(literal.toString()), -1));
+                literal.setLength(0);
+            }
+            String name = message.substring(first, second + 1);
+            int slot = names.indexOf(name);
+            if (slot == -1) {
+                names.add(name);
+                slot = names.size() - 1;
+            }
+            parts.add(new Part(new TextComponent(name), slot));
+            index = second + 1;
+        }
+        if (literal.length() > 0) {
+            parts.add(new Part(new TextComponent(literal.toString()), -1));
+        }
+        return new MessageTemplate(parts, names);
+    }
+
+    /**
+     * 番号を振ったプレースホルダーの名前を取得する。
+     *
+     * @return プレースホルダーの名前のリスト
+     */
+    @NotNull
+    List<String> getSlots() {
+        return slots;
+    }
+
+    /**
+     * 枠に値を入れたメッセージを作る。
+     *
+     * @param values 枠の番号の順に並べた値。足りない枠や null の枠はプレースホルダーをそのまま表示する
+     * @return 送信するコンポーネント
+     */
+    @NotNull
+    BaseComponent[] render(@Nullable BaseComponent... values) {
+        BaseComponent[] result = new BaseComponent[parts.size()];
+        for (int i = 0; i < result.length; i++) {
+            Part part = parts.get(i);
+            BaseComponent value = null;
+            if (part.slot != -1 && values != null && part.slot < values.length) {
+                value = values[part.slot];
+            }
+            result[i] = value != null ? value : part.text;
+        }
+        return result;
+    }
+
+    /**
+     * プレースホルダーの名前と値のマップから、枠に値を入れたメッセージを作る。
+     *
+     * @param placeholders プレースホルダーの名前と値のマップ
+     * @return 送信するコンポーネント
+     */
+    @NotNull
+    BaseComponent[] render(@NotNull Map<String, BaseComponent> placeholders) {
+        BaseComponent[] values = new BaseComponent[slots.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = placeholders.get(slots.get(i));
+        }
+        return render(values);
+    }
+}
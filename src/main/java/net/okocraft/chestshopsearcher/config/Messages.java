@@ -1,37 +1,43 @@
 package net.okocraft.chestshopsearcher.config;
 
-import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.logging.Level;
+import java.util.concurrent.ConcurrentHashMap;
 
-import com.Acrobot.Breeze.Utils.MaterialUtil;
 import com.Acrobot.ChestShop.UUIDs.NameManager;
 
-import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.CommandSender;
-import org.bukkit.inventory.ItemStack;
 
 import net.okocraft.configurationapi.BaseConfig;
 import net.md_5.bungee.api.chat.BaseComponent;
-import net.md_5.bungee.api.chat.HoverEvent;
 import net.md_5.bungee.api.chat.TextComponent;
 import net.okocraft.chestshopsearcher.Main;
-import net.okocraft.chestshopsearcher.ReflectionUtil;
+import net.okocraft.chestshopsearcher.database.OwnerDirectory;
 import net.okocraft.chestshopsearcher.database.Shop;
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
 public class Messages extends BaseConfig {
 
     private static Main plugin = Main.getInstance();
+
+    private static final String LINE_PATH = "command.search.line-buy-and-sell";
+    /** 検索結果の行のプレースホルダー。{@link #sendSearchResultLine(CommandSender, Shop)} はこの順に値を渡す。 */
+    private static final List<String> LINE_SLOTS = List.of("%item%", "%player-name%", "%location%", "%quantity%",
+            "%buy-price%", "%sell-price%");
+
     @NotNull
     private static Messages instance = new Messages();
 
+    /** 解析したメッセージ。キーはプレフィックスを付ける場合は {@code +} を前に付けたパス。再読み込みで捨てる。 */
+    private final Map<String, MessageTemplate> templates = new ConcurrentHashMap<>();
+    /** 検索結果の行に表示するアイテム。 */
+    private final ItemHoverCache itemHovers = new ItemHoverCache(Config.getInstance().getItemHoverCacheSize());
+
     private Messages() {
         super("messages.yml", plugin.getDataFolder(), plugin.getResource("messages.yml"));
+        compileLineTemplates();
     }
 
     @NotNull
@@ -49,25 +55,41 @@ public class Messages extends BaseConfig {
      */
     public void sendMessageComponent(@NotNull CommandSender sender, boolean addPrefix, String path,
                                      @NotNull Map<String, BaseComponent> placeholders) {
+        sendComponents(sender, getTemplate(addPrefix, path).render(placeholders));
+    }
+
+    private void sendComponents(@NotNull CommandSender sender, @NotNull BaseComponent[] components) {
+        if (components.length == 0) {
+            sender.spigot().sendMessage(new TextComponent());
+        } else {
+            sender.spigot().sendMessage(components);
+        }
+    }
+
+    /**
+     * 解析したメッセージを取得する。初めて使うメッセージはここで解析する。
+     *
+     * @param addPrefix プレフィックスを付けるかどうか
+     * @param path      メッセージのパス
+     * @return 解析したメッセージ
+     */
+    @NotNull
+    private MessageTemplate getTemplate(boolean addPrefix, @NotNull String path) {
+        return templates.computeIfAbsent((addPrefix ? "+" : "") + path, k -> compile(addPrefix, path, List.of()));
+    }
+
+    @NotNull
+    private MessageTemplate compile(boolean addPrefix, @NotNull String path, @NotNull List<String> slots) {
         String prefix = addPrefix ? getConfig().getString("command.general.info.plugin-prefix", "&8[&6CSS&8]&r") + " "
                 : "";
-        TextComponent message = new TextComponent();
-        String rawMessage = ChatColor.translateAlternateColorCodes('&', prefix + getMessage(path));
-        while (true) {
-            int placeholderIndexFirst = rawMessage.indexOf("%");
-            if (placeholderIndexFirst == -1) {
-                message.addExtra(rawMessage);
-                break;
-            }
-            message.addExtra(rawMessage.substring(0, placeholderIndexFirst));
-            rawMessage = rawMessage.substring(placeholderIndexFirst + 1);
-            int placeholderIndexSecond = rawMessage.indexOf("%");
-            String key = "%" + rawMessage.substring(0, placeholderIndexSecond + 1);
-            message.addExtra(placeholders.getOrDefault(key, new TextComponent(key)));
-            rawMessage = rawMessage.substring(placeholderIndexSecond + 1);
-        }
+        return MessageTemplate.compile(prefix + getMessage(path), slots);
+    }
 
-        sender.spigot().sendMessage(message);
+    /**
+     * 検索結果の行は一度に何行も送るので、読み込み時に {@link #LINE_SLOTS} の順で枠を決めて解析しておく。
+     */
+    private void compileLineTemplates() {
+        templates.put(LINE_PATH, compile(false, LINE_PATH, LINE_SLOTS));
     }
 
     /**
@@ -130,57 +152,53 @@ public class Messages extends BaseConfig {
         return getConfig().getString(path, path);
     }
 
-    public void sendSearchResultHeader(@NotNull CommandSender sender) {
-        sendMessage(sender, "command.search.header");
+    public void sendSearchResultHeader(@NotNull CommandSender sender, int page, int maxPage, long count) {
+        sendMessage(sender, "command.search.header", Map.of(
+                "%page%", String.valueOf(page),
+                "%max-page%", String.valueOf(maxPage),
+                "%count%", String.valueOf(count)
+        ));
     }
 
     public void sendSearchResultLine(@NotNull CommandSender sender, @NotNull Shop shop) {
-        String playerName = "%player-name%";
-        try {
-            UUID uuid = UUID.fromString(shop.getOwnerUniqueId());
-            OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
-            if (NameManager.isAdminShop(uuid)) {
-                playerName = "Admin Shop";
-            } else if (player.getName() != null) {
-                playerName = player.getName();
-            } else {
-                playerName = "null";
-            }
-        } catch (IllegalArgumentException e) {
-            e.printStackTrace();
+        String playerName;
+        UUID uuid = shop.getOwnerUniqueId();
+        if (NameManager.isAdminShop(uuid)) {
+            playerName = "Admin Shop";
+        } else {
+            // 検索スレッドで読み込んでおいた辞書だけを引き、メインスレッドではDBに問い合わせない。
+            String name = OwnerDirectory.getInstance().getCachedName(uuid);
+            playerName = name != null ? name : "null";
         }
 
-        boolean isBuy = !shop.getBuyPrice().equals("-1");
-        boolean isSell = !shop.getSellPrice().equals("-1");
-        if (isBuy && isSell) {
-            sendMessageComponent(sender, false, "command.search.line-buy-and-sell",
-                    Map.of("%player-name%", new TextComponent(playerName), "%item%",
-                            toTextComponent(MaterialUtil.getItem(shop.getItem())),
-                            "%location%", new TextComponent(shop.getLocation()), "%buy-price%",
-                            new TextComponent(shop.getBuyPrice()), "%sell-price%",
-                            new TextComponent(shop.getSellPrice()), "%quantity%",
-                            new TextComponent(String.valueOf(shop.getQuantity()))));
-        } else if (isBuy) {
-            sendMessageComponent(sender, false, "command.search.line-buy-and-sell",
-                    Map.of("%player-name%", new TextComponent(playerName), "%item%",
-                            toTextComponent(MaterialUtil.getItem(shop.getItem())),
-                            "%location%", new TextComponent(shop.getLocation()), "%buy-price%",
-                            new TextComponent(shop.getBuyPrice()), "%quantity%",
-                            new TextComponent(String.valueOf(shop.getQuantity()))));
-        } else if (isSell) {
-            sendMessageComponent(sender, false, "command.search.line-buy-and-sell",
-                    Map.of("%player-name%", new TextComponent(playerName), "%item%",
-                            toTextComponent(MaterialUtil.getItem(shop.getItem())),
-                            "%location%", new TextComponent(shop.getLocation()), "%sell-price%",
-                            new TextComponent(shop.getSellPrice()), "%quantity%",
-                            new TextComponent(String.valueOf(shop.getQuantity()))));
+        boolean isBuy = shop.isBuying();
+        boolean isSell = shop.isSelling();
+        if (!isBuy && !isSell) {
+            return;
         }
+
+        BaseComponent[] values = new BaseComponent[LINE_SLOTS.size()];
+        values[0] = itemHovers.get(shop.getItem());
+        values[1] = new TextComponent(playerName);
+        values[2] = new TextComponent(shop.getLocation());
+        values[3] = new TextComponent(String.valueOf(shop.getQuantity()));
+        if (isBuy) {
+            values[4] = new TextComponent(Shop.formatPrice(shop.getBuyPrice()));
+        }
+        if (isSell) {
+            values[5] = new TextComponent(Shop.formatPrice(shop.getSellPrice()));
+        }
+        sendComponents(sender, getTemplate(false, LINE_PATH).render(values));
     }
 
     public void sendSpecifyPageToSeeMore(@NotNull CommandSender sender) {
         sendMessage(sender, "command.search.specify-page-to-see-more");
     }
 
+    public void sendSearchBusy(@NotNull CommandSender sender) {
+        sendMessage(sender, "command.search.busy");
+    }
+
     public void sendNoWorld(@NotNull CommandSender sender) {
         sendMessage(sender, "command.search.no-world");
     }
@@ -223,56 +241,8 @@ public class Messages extends BaseConfig {
 
     void reload() {
         reloadConfig();
-    }
-
-    /**
-     * Converts an {@link org.bukkit.inventory.ItemStack} to a Json string for
-     * sending with {@link net.md_5.bungee.api.chat.BaseComponent}'s.
-     *
-     * @param itemStack the item to convert
-     * @return the hover evnet that show the item
-     */
-    @Nullable
-    private TextComponent toTextComponent(@NotNull ItemStack itemStack) {
-        // ItemStack methods to get a net.minecraft.server.ItemStack object for
-        // serialization
-        Class<?> craftItemStackClazz = ReflectionUtil.getOBCClass("inventory.CraftItemStack");
-        Method asNMSCopyMethod = ReflectionUtil.getMethod(craftItemStackClazz, "asNMSCopy", ItemStack.class);
-
-        // NMS Method to serialize a net.minecraft.server.ItemStack to a valid Json
-        // string
-        Class<?> nmsItemStackClazz = ReflectionUtil.getNMSClass("ItemStack");
-        Class<?> nbtTagCompoundClazz = ReflectionUtil.getNMSClass("NBTTagCompound");
-        Method saveNmsItemStackMethod = ReflectionUtil.getMethod(nmsItemStackClazz, "save", nbtTagCompoundClazz);
-
-        // This will just be an empty NBTTagCompound instance to invoke the saveNms
-        // method
-        Object nmsNbtTagCompoundObj;
-
-        // This is the net.minecraft.server.ItemStack object received from the asNMSCopy
-        // method
-        Object nmsItemStackObj;
-
-        // This is the net.minecraft.server.ItemStack after being put through
-        // saveNmsItem method
-        Object itemAsJsonObject;
-
-        try {
-            nmsNbtTagCompoundObj = nbtTagCompoundClazz.getDeclaredConstructor().newInstance();
-            nmsItemStackObj = asNMSCopyMethod.invoke(null, itemStack);
-            itemAsJsonObject = saveNmsItemStackMethod.invoke(nmsItemStackObj, nmsNbtTagCompoundObj);
-        } catch (Throwable t) {
-            plugin.getLogger().log(Level.SEVERE, "failed to serialize itemstack to nms item", t);
-            return null;
-        }
-        
-        BaseComponent[] hoverEventComponents = new BaseComponent[]{
-            new TextComponent(itemAsJsonObject.toString())
-        };
-
-        HoverEvent hover = new HoverEvent(HoverEvent.Action.SHOW_ITEM, hoverEventComponents);
-        TextComponent text = new TextComponent(MaterialUtil.getName(itemStack));
-        text.setHoverEvent(hover);
-        return text;
+        templates.clear();
+        compileLineTemplates();
+        itemHovers.clear();
     }
 }
\ No newline at end of file
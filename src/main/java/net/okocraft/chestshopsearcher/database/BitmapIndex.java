@@ -0,0 +1,155 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * {@link ShopColumns} の行番号の圧縮ビットマップによるインデックス。
+ * <p>
+ * ワールド、アイテム、持ち主は値ごとに、価格、在庫、取引数は値の大きさで分けたバケットごとに一つのビットマップを持つ。
+ * 検索では等しい条件のビットマップと、範囲に重なるバケットのビットマップの和を AND して候補の行を決める。
+ * バケットの端では範囲の外の行も含むので、候補は {@link RowFilter#test(int)} で確かめる。
+ * <p>
+ * ビットマップには生きている行だけを入れる。墓標を立てる前に {@link #remove(ShopColumns, int)} で外し、
+ * 行を詰めたときは作り直す。スレッドセーフではないので、{@link ShopIndex} のロックの中で使う。
+ */
+final class BitmapIndex {
+
+    private final Map<Integer, RoaringBitmap> byWorld = new HashMap<>();
+    private final Map<Integer, RoaringBitmap> byItem = new HashMap<>();
+    private final Map<Integer, RoaringBitmap> byOwner = new HashMap<>();
+    private final NavigableMap<Integer, RoaringBitmap> byBuyPrice = new TreeMap<>();
+    private final NavigableMap<Integer, RoaringBitmap> bySellPrice = new TreeMap<>();
+    private final NavigableMap<Integer, RoaringBitmap> byStock = new TreeMap<>();
+    private final NavigableMap<Integer, RoaringBitmap> byQuantity = new TreeMap<>();
+
+    /**
+     * 行をインデックスに加える。
+     *
+     * @param columns 行を持つストア
+     * @param row     行
+     */
+    void add(@NotNull ShopColumns columns, int row) {
+        get(byWorld, columns.getWorld(row)).add(row);
+        get(byItem, columns.getItem(row)).add(row);
+        get(byOwner, columns.getOwner(row)).add(row);
+        get(byBuyPrice, bucket(columns.getBuyPrice(row))).add(row);
+        get(bySellPrice, bucket(columns.getSellPrice(row))).add(row);
+        get(byStock, bucket(columns.getStock(row))).add(row);
+        get(byQuantity, bucket(columns.getQuantity(row))).add(row);
+    }
+
+    /**
+     * 行をインデックスから外す。行の値を読むので、行を詰める前に呼ぶ。
+     *
+     * @param columns 行を持つストア
+     * @param row     行
+     */
+    void remove(@NotNull ShopColumns columns, int row) {
+        remove(byWorld, columns.getWorld(row), row);
+        remove(byItem, columns.getItem(row), row);
+        remove(byOwner, columns.getOwner(row), row);
+        remove(byBuyPrice, bucket(columns.getBuyPrice(row)), row);
+        remove(bySellPrice, bucket(columns.getSellPrice(row)), row);
+        remove(byStock, bucket(columns.getStock(row)), row);
+        remove(byQuantity, bucket(columns.getQuantity(row)), row);
+    }
+
+    void clear() {
+        byWorld.clear();
+        byItem.clear();
+        byOwner.clear();
+        byBuyPrice.clear();
+        bySellPrice.clear();
+        byStock.clear();
+        byQuantity.clear();
+    }
+
+    /**
+     * 条件の候補になる行のビットマップを作る。範囲の条件ではバケットの端の行も含む。
+     *
+     * @param filter コンパイルした検索条件
+     * @return 候補の行。使える条件が一つも無い場合はnull
+     */
+    @Nullable
+    RoaringBitmap select(@NotNull RowFilter filter) {
+        RoaringBitmap result = null;
+        if (filter.world >= 0) {
+            result = and(result, byWorld.get(filter.world));
+        }
+        if (filter.item >= 0) {
+            result = and(result, byItem.get(filter.item));
+        }
+        if (filter.owner >= 0) {
+            result = and(result, byOwner.get(filter.owner));
+        }
+        result = andRange(result, byStock, filter.minStock, filter.maxStock, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        result = andRange(result, byQuantity, filter.minQuantity, filter.maxQuantity, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        result = andRange(result, byBuyPrice, filter.minBuyPrice, filter.maxBuyPrice, Long.MIN_VALUE, Long.MAX_VALUE);
+        result = andRange(result, bySellPrice, filter.minSellPrice, filter.maxSellPrice, Long.MIN_VALUE, Long.MAX_VALUE);
+        return result;
+    }
+
+    /**
+     * 値をバケットの番号にする。値の2進の桁数ごとに4つに分け、値の順と番号の順は同じになる。
+     * 0から3はそのままの番号に、負の値は {@code ~value} の番号を負にした番号になる。
+     *
+     * @param value 値
+     * @return バケットの番号
+     */
+    static int bucket(long value) {
+        if (value < 0) {
+            return -1 - bucket(~value);
+        }
+        if (value < 4) {
+            return (int) value;
+        }
+        int bits = 64 - Long.numberOfLeadingZeros(value);
+        return (bits - 3) * 4 + (int) (value >>> (bits - 3));
+    }
+
+    @NotNull
+    private static RoaringBitmap and(@Nullable RoaringBitmap result, @Nullable RoaringBitmap bitmap) {
+        if (bitmap == null) {
+            return new RoaringBitmap();
+        }
+        return result == null ? bitmap.clone() : RoaringBitmap.and(result, bitmap);
+    }
+
+    /**
+     * 範囲に重なるバケットのビットマップの和と AND する。範囲に制限が無い場合と、既に候補が無い場合は何もしない。
+     */
+    @Nullable
+    private static RoaringBitmap andRange(@Nullable RoaringBitmap result, @NotNull NavigableMap<Integer, RoaringBitmap> buckets,
+                                          long min, long max, long unboundedMin, long unboundedMax) {
+        if ((min == unboundedMin && max == unboundedMax) || (result != null && result.isEmpty())) {
+            return result;
+        }
+        if (min > max) {
+            return new RoaringBitmap();
+        }
+        RoaringBitmap union = RoaringBitmap.or(buckets.subMap(bucket(min), true, bucket(max), true).values().iterator());
+        return result == null ? union : RoaringBitmap.and(result, union);
+    }
+
+    @NotNull
+    private static RoaringBitmap get(@NotNull Map<Integer, RoaringBitmap> index, int key) {
+        return index.computeIfAbsent(key, k -> new RoaringBitmap());
+    }
+
+    private static void remove(@NotNull Map<Integer, RoaringBitmap> index, int key, int row) {
+        RoaringBitmap bitmap = index.get(key);
+        if (bitmap != null) {
+            bitmap.remove(row);
+            if (bitmap.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+}
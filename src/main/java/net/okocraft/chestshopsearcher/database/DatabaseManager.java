@@ -1,14 +1,35 @@
 package net.okocraft.chestshopsearcher.database;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.function.Consumer;
 
 import javax.persistence.Entity;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
+import javax.persistence.metamodel.EntityType;
 
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
 import org.hibernate.cfg.Configuration;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.jpa.QueryHints;
 
 import net.okocraft.chestshopsearcher.Main;
 import net.okocraft.chestshopsearcher.config.Config;
@@ -22,6 +43,14 @@ class DatabaseManager<T> {
 
     private Class<T> type;
     private EntityManagerFactory emf;
+    /** getPropertiesで選ばれたHibernateのダイアレクト */
+    private String dialect;
+
+    /** 読み取り専用で検索するときのヒント */
+    private static final Map<String, Object> READ_ONLY_HINTS = Map.of(QueryHints.HINT_READONLY, true);
+
+    /** SQLiteの1文あたりのパラメータ数の上限(999)を超えないように、IN句に入れるキーの最大数 */
+    private static final int MAX_IN_PARAMETERS = 900;
 
     /**
      * エンティティの型を指定して生成する<br>
@@ -43,8 +72,6 @@ class DatabaseManager<T> {
                 .addProperties(getProperties())
                 .buildSessionFactory();
 
-        createTable();
-
         // NOTE: BukkitプラグインではプラグインからJPAのpersistence.xmlを指定できないため、HibernateからEntityManagerFactoryを生成している。
         // emf = Persistence.createEntityManagerFactory("default_pu", getProperties());
     }
@@ -68,42 +95,48 @@ class DatabaseManager<T> {
             String password = config.getMySQLPassword();
             properties.put("hibernate.connection.username", user);
             properties.put("hibernate.connection.password", password);
-            properties.put("hibernate.connection.url", "jdbc:mysql://" + host + ":" + port + "/" + dbName);
+            // rewriteBatchedStatementsを有効にして、JDBCのバッチを複数行のINSERTにまとめて送らせる。
+            properties.put("hibernate.connection.url", "jdbc:mysql://" + host + ":" + port + "/" + dbName + "?rewriteBatchedStatements=true");
             properties.put("hibernate.connection.driver_class", "com.mysql.jdbc.Driver");
             properties.put("hibernate.dialect", "org.hibernate.dialect.MySQLDialect");
+            // サーバー側のプリペアドステートメントを使い、ドライバ側でキャッシュする。
+            properties.put("hibernate.hikari.dataSource.useServerPrepStmts", "true");
+            properties.put("hibernate.hikari.dataSource.cachePrepStmts", "true");
+            properties.put("hibernate.hikari.dataSource.prepStmtCacheSize", String.valueOf(config.getPreparedStatementCacheSize()));
+            properties.put("hibernate.hikari.dataSource.prepStmtCacheSqlLimit", "2048");
         } else {
             // MySQLが使えない場合はSQLiteを使う
             properties.put("hibernate.connection.url", "jdbc:sqlite:" + Main.getInstance().getDataFolder().toPath().resolve(dbName + ".db").toString());
             properties.put("hibernate.connection.driver_class", "org.sqlite.JDBC");
             properties.put("hibernate.dialect", "org.hibernate.dialect.SQLiteDialect");
+            // WALにして、読み込みと書き込みスレッドの書き込みが互いを待たないようにする。
+            properties.put("hibernate.hikari.dataSource.journal_mode", "WAL");
+            properties.put("hibernate.hikari.dataSource.busy_timeout", "5000");
+        }
+
+        // Hibernate組み込みのコネクション管理は本番向けではないので、HikariCPのプールを使う。
+        properties.put("hibernate.connection.provider_class", "org.hibernate.hikaricp.internal.HikariCPConnectionProvider");
+        properties.put("hibernate.hikari.poolName", "ChestShopSearcher");
+        properties.put("hibernate.hikari.minimumIdle", String.valueOf(config.getPoolMinimumIdle()));
+        properties.put("hibernate.hikari.maximumPoolSize", String.valueOf(config.getPoolMaximumSize()));
+        properties.put("hibernate.hikari.idleTimeout", String.valueOf(config.getPoolIdleTimeout()));
+        properties.put("hibernate.hikari.connectionTimeout", String.valueOf(config.getPoolConnectionTimeout()));
+        properties.put("hibernate.hikari.validationTimeout", String.valueOf(config.getPoolValidationTimeout()));
+        properties.put("hibernate.hikari.leakDetectionThreshold", String.valueOf(config.getPoolLeakDetectionThreshold()));
+        String validationQuery = config.getPoolValidationQuery();
+        if (!validationQuery.isEmpty()) {
+            properties.put("hibernate.hikari.connectionTestQuery", validationQuery);
         }
 
         properties.put("hibernate.show_sql", String.valueOf(config.isSQLLoggingEnabled()));
         properties.put("hibernate.format_sql", "true");
         properties.put("hibernate.hbm2ddl.auto", "none");
+        // 一括書き込みをJDBCのバッチで送る。書き込みは StatelessSession で行うので文の並べ替えの設定は効かない。
+        properties.put("hibernate.jdbc.batch_size", String.valueOf(config.getJdbcBatchSize()));
+        dialect = properties.getProperty("hibernate.dialect");
         return properties;
     }
 
-    private void createTable() {
-        EntityManager em = null;
-        try {
-            em = emf.createEntityManager();
-            em.getTransaction().begin();
-
-            String createTable = "create table if not exists shops (location varchar(100) not null, buy_price varchar(255) not null, item varchar(255) not null, owner varchar(36) not null, quantity integer not null, sell_price varchar(255) not null, stock integer not null, primary key (location))";
-            em.createNativeQuery(createTable).executeUpdate();    
-
-            em.getTransaction().commit();
-        } catch (Exception e) {
-            e.printStackTrace();
-
-        } finally {
-            if (em != null) {
-                em.close();
-            }
-        }
-    }
-
     /**
      * エンティティを新規に保存する
      *
@@ -178,6 +211,316 @@ class DatabaseManager<T> {
         }
     }
 
+    /**
+     * 一つのトランザクションの中で処理を実行する。途中で例外が発生した場合はロールバックする。
+     *
+     * @param action EntityManagerを受け取って実行する処理
+     * @return コミットに成功したらtrue
+     */
+    boolean transaction(@NotNull Consumer<EntityManager> action) {
+        EntityManager em = null;
+        EntityTransaction tx = null;
+        try {
+            em = emf.createEntityManager();
+            tx = em.getTransaction();
+            tx.begin();
+            action.accept(em);
+            tx.commit();
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+            return false;
+
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * プールからJDBCのコネクションを直接借りて処理を実行する。
+     * コネクションは自動コミットを無効にした状態で渡すので、コミットは処理の中で行う。
+     * 処理が例外を投げた場合はロールバックする。
+     *
+     * @param callback コネクションを使う処理
+     * @param <R>      処理の結果の型
+     * @return 処理の結果
+     * @throws SQLException 処理やコネクションの取得に失敗したとき
+     */
+    <R> R withConnection(@NotNull ConnectionCallback<R> callback) throws SQLException {
+        ConnectionProvider provider = emf.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(ConnectionProvider.class);
+        Connection connection = provider.getConnection();
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            return callback.execute(connection);
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+            provider.closeConnection(connection);
+        }
+    }
+
+    /**
+     * JDBCのコネクションを直接使う処理。
+     *
+     * @param <R> 処理の結果の型
+     */
+    @FunctionalInterface
+    interface ConnectionCallback<R> {
+        R execute(@NotNull Connection connection) throws SQLException;
+    }
+
+    /**
+     * 複数のエンティティを新規に保存する。StatelessSessionを使い、
+     * {@link Config#getBulkCommitSize()} 件ごとにコミットする。
+     *
+     * @param entities 保存するエンティティ
+     * @return 保存できた件数
+     */
+    public int persistAll(@NotNull Collection<T> entities) {
+        return bulkWrite(entities, StatelessSession::insert);
+    }
+
+    /**
+     * 複数のエンティティを更新して保存する。DBにまだ無いエンティティは新規に保存する。
+     * 既存かどうかはコミットの単位ごとに一度のSELECTでまとめて調べる。
+     *
+     * @param entities 保存するエンティティ
+     * @return 保存できた件数
+     */
+    public int mergeAll(@NotNull Collection<T> entities) {
+        return bulkWrite(entities, null);
+    }
+
+    /**
+     * 主キーを指定して複数のエンティティを削除する。
+     * コミットの単位ごとに一つの {@code DELETE ... WHERE <主キー> IN (...)} を実行する。
+     *
+     * @param keys 削除するエンティティの主キー
+     * @return 削除した件数
+     */
+    public int removeAll(@NotNull Collection<?> keys) {
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        int removed = 0;
+        StatelessSession session = null;
+        Transaction tx = null;
+        try {
+            session = emf.unwrap(SessionFactory.class).openStatelessSession();
+            for (List<?> chunk : chunk(keys, Math.min(getBulkCommitSize(), MAX_IN_PARAMETERS))) {
+                tx = session.beginTransaction();
+                removed += session.createQuery(getDeleteByKeysQuery())
+                        .setParameterList("keys", chunk)
+                        .executeUpdate();
+                tx.commit();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * トランザクション中のEntityManagerを使って、主キーを指定して複数のエンティティを削除する。
+     *
+     * @param em   トランザクション中のEntityManager
+     * @param keys 削除するエンティティの主キー
+     */
+    void removeAll(@NotNull EntityManager em, @NotNull Collection<?> keys) {
+        for (List<?> chunk : chunk(keys, MAX_IN_PARAMETERS)) {
+            em.createQuery(getDeleteByKeysQuery()).setParameter("keys", chunk).executeUpdate();
+        }
+    }
+
+    /**
+     * StatelessSessionでエンティティを書き込む。{@code writer} がnullの場合は、
+     * 既存のエンティティを更新し、無いエンティティを新規に保存する。
+     *
+     * @param entities 書き込むエンティティ
+     * @param writer   一件を書き込む処理
+     * @return 書き込めた件数
+     */
+    private int bulkWrite(@NotNull Collection<T> entities, @Nullable BulkWriter<T> writer) {
+        if (entities.isEmpty()) {
+            return 0;
+        }
+
+        int count = 0;
+        StatelessSession session = null;
+        Transaction tx = null;
+        try {
+            session = emf.unwrap(SessionFactory.class).openStatelessSession();
+            for (List<T> chunk : chunk(entities, getBulkCommitSize())) {
+                tx = session.beginTransaction();
+                if (writer != null) {
+                    for (T entity : chunk) {
+                        writer.write(session, entity);
+                    }
+                } else {
+                    mergeChunk(session, chunk);
+                }
+                tx.commit();
+                count += chunk.size();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (tx != null && tx.isActive()) {
+                tx.rollback();
+            }
+
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+        return count;
+    }
+
+    private void mergeChunk(@NotNull StatelessSession session, @NotNull List<T> chunk) {
+        List<Object> ids = new ArrayList<>(chunk.size());
+        for (T entity : chunk) {
+            ids.add(emf.getPersistenceUnitUtil().getIdentifier(entity));
+        }
+
+        Collection<Object> existingIds = new HashSet<>();
+        for (List<Object> idChunk : chunk(ids, MAX_IN_PARAMETERS)) {
+            existingIds.addAll(session.createQuery("SELECT c." + getIdName() + " FROM " + type.getSimpleName() + " c WHERE c." + getIdName() + " IN (:keys)", Object.class)
+                    .setParameterList("keys", idChunk)
+                    .getResultList());
+        }
+
+        for (int i = 0; i < chunk.size(); i++) {
+            if (existingIds.contains(ids.get(i))) {
+                session.update(chunk.get(i));
+            } else {
+                session.insert(chunk.get(i));
+            }
+        }
+    }
+
+    @NotNull
+    private String getDeleteByKeysQuery() {
+        return "DELETE FROM " + type.getSimpleName() + " c WHERE c." + getIdName() + " IN (:keys)";
+    }
+
+    @NotNull
+    private String getIdName() {
+        EntityType<T> entityType = emf.getMetamodel().entity(type);
+        return entityType.getId(entityType.getIdType().getJavaType()).getName();
+    }
+
+    private static int getBulkCommitSize() {
+        return Math.max(1, Config.getInstance().getBulkCommitSize());
+    }
+
+    @NotNull
+    private static <E> List<List<E>> chunk(@NotNull Collection<? extends E> elements, int size) {
+        List<List<E>> chunks = new ArrayList<>();
+        List<E> current = new ArrayList<>(Math.min(size, elements.size()));
+        for (E element : elements) {
+            current.add(element);
+            if (current.size() >= size) {
+                chunks.add(current);
+                current = new ArrayList<>(size);
+            }
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    /**
+     * StatelessSessionで一件のエンティティを書き込む処理。
+     *
+     * @param <T> エンティティの型
+     */
+    @FunctionalInterface
+    private interface BulkWriter<T> {
+        void write(@NotNull StatelessSession session, @NotNull T entity);
+    }
+
+    /**
+     * MySQLのダイアレクトを使っているかどうかを取得する。ネイティブクエリの方言を選ぶのに使う。
+     *
+     * @return MySQLならtrue、SQLiteならfalse
+     */
+    boolean isMySQL() {
+        return dialect != null && dialect.contains("MySQL");
+    }
+
+    /**
+     * ネイティブSQLを一つのJDBCのバッチとして実行する。トランザクションの中で呼ぶ。
+     *
+     * @param em     トランザクション中のEntityManager
+     * @param sql    パラメータ付きのネイティブSQL
+     * @param rows   一行ごとにパラメータをセットする要素
+     * @param binder 要素の値をステートメントにセットする処理
+     * @param <E>    要素の型
+     */
+    static <E> void executeBatch(@NotNull EntityManager em, @NotNull String sql, @NotNull Collection<E> rows,
+                                 @NotNull StatementBinder<? super E> binder) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        em.unwrap(Session.class).doWork(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                for (E row : rows) {
+                    binder.bind(statement, row);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        });
+    }
+
+    /**
+     * 要素の値をPreparedStatementのパラメータにセットする処理。
+     *
+     * @param <E> 要素の型
+     */
+    @FunctionalInterface
+    interface StatementBinder<E> {
+        void bind(@NotNull PreparedStatement statement, @NotNull E row) throws SQLException;
+    }
+
+    /**
+     * 読み取り専用のEntityManagerを作る。
+     * <p>
+     * 読み込んだエンティティはスナップショットを持たず、ダーティチェックもフラッシュもされない。
+     * トランザクションを開始せずに自動コミットのまま問い合わせるので、書き込みスレッドのトランザクションとロックを取り合わない。
+     * 返したエンティティを変更してもDBには反映されない。
+     *
+     * @return 読み取り専用のEntityManager
+     */
+    @NotNull
+    private EntityManager createReadOnlyEntityManager() {
+        EntityManager em = emf.createEntityManager();
+        Session session = em.unwrap(Session.class);
+        session.setDefaultReadOnly(true);
+        session.setHibernateFlushMode(FlushMode.MANUAL);
+        return em;
+    }
+
     /**
      * 主キーを指定してエンティティを検索する
      *
@@ -189,10 +532,8 @@ class DatabaseManager<T> {
         EntityManager em = null;
         T obj = null;
         try {
-            em = emf.createEntityManager();
-            em.getTransaction().begin();
-            obj = em.find(type, key);
-            em.getTransaction().commit();
+            em = createReadOnlyEntityManager();
+            obj = em.find(type, key, READ_ONLY_HINTS);
         } catch (Exception e) {
             e.printStackTrace();
 
@@ -303,17 +644,14 @@ class DatabaseManager<T> {
         List<T> ls = null;
 
         try {
-            em = emf.createEntityManager();
-            em.getTransaction().begin();
+            em = createReadOnlyEntityManager();
 
-            TypedQuery<T> q = em.createQuery(queryString, type);
+            TypedQuery<T> q = em.createQuery(queryString, type).setHint(QueryHints.HINT_READONLY, true);
             for (int i = 0; i < param.length; i++) {
                 q.setParameter(i + 1, param[i]);
             }
             ls = q.getResultList();
 
-            em.getTransaction().commit();
-
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Query=" + queryString);
@@ -357,17 +695,14 @@ class DatabaseManager<T> {
 
         EntityManager em = null;
         try {
-            em = emf.createEntityManager();
-            em.getTransaction().begin();
+            em = createReadOnlyEntityManager();
 
-            TypedQuery<T> q = em.createQuery(queryString, type);
+            TypedQuery<T> q = em.createQuery(queryString, type).setHint(QueryHints.HINT_READONLY, true);
             for (int i = 0; i < param.length; i++) {
                 q.setParameter(i + 1, param[i]);
             }
             ls = q.setFirstResult(from).setMaxResults(max).getResultList();
 
-            em.getTransaction().commit();
-
         } catch (Exception e) {
             e.printStackTrace();
             System.err.println("Query=" + queryString);
@@ -394,12 +729,9 @@ class DatabaseManager<T> {
         EntityManager em = null;
 
         try {
-            em = emf.createEntityManager();
-            em.getTransaction().begin();
+            em = createReadOnlyEntityManager();
 
-            ls = em.createQuery(queryString, Object.class).getResultList();
-
-            em.getTransaction().commit();
+            ls = em.createQuery(queryString, Object.class).setHint(QueryHints.HINT_READONLY, true).getResultList();
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -418,6 +750,127 @@ class DatabaseManager<T> {
 
     }
 
+    /**
+     * パラメータ付きのクエリを実行して、エンティティではない値のリストを最大max件取得する。
+     *
+     * @param queryString パラメータ付きクエリ
+     * @param resultType  結果の型
+     * @param max         最大取得する件数
+     * @param param       パラメータにセットするオブジェクトの配列
+     * @param <R>         結果の型
+     * @return 値のリスト。失敗した場合はnull
+     */
+    @Nullable
+    public <R> List<R> selectValues(String queryString, @NotNull Class<R> resultType, int max, @NotNull Object... param) {
+        EntityManager em = null;
+        try {
+            em = createReadOnlyEntityManager();
+
+            TypedQuery<R> q = em.createQuery(queryString, resultType).setHint(QueryHints.HINT_READONLY, true);
+            for (int i = 0; i < param.length; i++) {
+                q.setParameter(i + 1, param[i]);
+            }
+            return q.setMaxResults(max).getResultList();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Query=" + queryString);
+            return null;
+
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * 主キーを指定して複数のエンティティを取得する。{@code IN} の一度のパラメータ数を制限するため、分けて問い合わせる。
+     *
+     * @param keys 主キー
+     * @return 見つかったエンティティのリスト。順番は保証しない
+     */
+    @NotNull
+    public List<T> findAll(@NotNull Collection<?> keys) {
+        List<T> result = new ArrayList<>();
+        if (keys.isEmpty()) {
+            return result;
+        }
+
+        EntityManager em = null;
+        String queryString = "SELECT c FROM " + type.getSimpleName() + " c WHERE c." + getIdName() + " IN (:keys)";
+        try {
+            em = createReadOnlyEntityManager();
+            for (List<?> chunk : chunk(keys, MAX_IN_PARAMETERS)) {
+                result.addAll(em.createQuery(queryString, type)
+                        .setHint(QueryHints.HINT_READONLY, true)
+                        .setParameter("keys", chunk)
+                        .getResultList());
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Query=" + queryString);
+
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * パラメータ付きの {@code SELECT count(...)} のクエリを実行して件数を取得する。
+     * 件数はDB側で数えるので、エンティティは読み込まない。
+     *
+     * @param queryString パラメータ付きの件数を数えるクエリ
+     * @param param       パラメータにセットするオブジェクトの配列
+     * @return 件数。失敗した場合は0
+     */
+    public long count(String queryString, @NotNull Object... param) {
+        EntityManager em = null;
+        try {
+            em = createReadOnlyEntityManager();
+
+            TypedQuery<Long> q = em.createQuery(queryString, Long.class).setHint(QueryHints.HINT_READONLY, true);
+            for (int i = 0; i < param.length; i++) {
+                q.setParameter(i + 1, param[i]);
+            }
+            Long count = q.getSingleResult();
+            return count != null ? count : 0L;
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.err.println("Query=" + queryString);
+            return 0L;
+
+        } finally {
+            if (em != null) {
+                em.close();
+            }
+        }
+    }
+
+    /**
+     * コネクションプールの統計を取得する。
+     *
+     * @return コネクションプールの統計。プールが使われていない場合はnull
+     */
+    @Nullable
+    public HikariPoolMXBean getPoolStatistics() {
+        try {
+            ConnectionProvider provider = emf.unwrap(SessionFactoryImplementor.class)
+                    .getServiceRegistry().getService(ConnectionProvider.class);
+            if (provider == null || !provider.isUnwrappableAs(HikariDataSource.class)) {
+                return null;
+            }
+            return provider.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * データベースマネージャーを閉じる<br>
      * プログラムの最後に実行する<br>
@@ -0,0 +1,163 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.config.Config;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * location を world, x, y, z の列に分けて保存し、(world, x, z, y) の複合インデックスを張る。
+ * <p>
+ * 列が無ければ追加し、まだ world が入っていない行を location の順に一定件数ずつ埋めてコミットする。
+ * 途中で止まった場合も、埋まっていない行だけを続きから処理する。
+ * location を分けられない行は消さずに shops_unmigrated テーブルに移し、最後に列を {@link Shop} の対応付けと同じ not null にする。
+ */
+final class LocationColumnsMigration implements Migration {
+
+    @Override
+    public int getVersion() {
+        return 2;
+    }
+
+    @NotNull
+    @Override
+    public String getDescription() {
+        return "split locations into world, x, y and z columns";
+    }
+
+    @Override
+    public void migrate(@NotNull Connection connection, boolean mysql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (!SchemaMigrator.hasColumn(connection, "shops", "world")) {
+                statement.executeUpdate("alter table shops add column world varchar(100)");
+            }
+            for (String axis : new String[]{"x", "y", "z"}) {
+                if (!SchemaMigrator.hasColumn(connection, "shops", axis)) {
+                    statement.executeUpdate("alter table shops add column " + axis + " integer");
+                }
+            }
+        }
+        connection.commit();
+
+        String lastLocation = "";
+        int batchSize = Math.max(1, Config.getInstance().getBulkCommitSize());
+        int converted = 0;
+        try (PreparedStatement select = connection.prepareStatement("select location from shops where world is null and location > ? order by location limit ?");
+             PreparedStatement update = connection.prepareStatement("update shops set world = ?, x = ?, y = ?, z = ? where location = ?")) {
+            while (true) {
+                select.setString(1, lastLocation);
+                select.setInt(2, batchSize);
+                int read = 0;
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        read++;
+                        lastLocation = rows.getString("location");
+                        String[] parts = lastLocation.split(",");
+                        try {
+                            if (parts.length != 4) {
+                                throw new IllegalArgumentException("location parts format must be world,x,y,z.");
+                            }
+                            update.setString(1, parts[0]);
+                            update.setInt(2, Integer.parseInt(parts[1]));
+                            update.setInt(3, Integer.parseInt(parts[2]));
+                            update.setInt(4, Integer.parseInt(parts[3]));
+                        } catch (IllegalArgumentException e) {
+                            // 分けられない行は後でまとめて shops_unmigrated に移す。
+                            continue;
+                        }
+                        update.setString(5, lastLocation);
+                        update.addBatch();
+                        converted++;
+                    }
+                }
+                update.executeBatch();
+                connection.commit();
+
+                if (read < batchSize) {
+                    break;
+                }
+            }
+        }
+
+        int moved = moveUnsplitRows(connection);
+        makeNotNull(connection, mysql);
+        SchemaMigrator.createIndex(connection, "shops", "idx_shops_coordinates", "world, x, z, y");
+        Main.getInstance().getLogger().info("Split locations of " + converted + " shops.");
+        if (moved > 0) {
+            Main.getInstance().getLogger().warning(moved + " shops have invalid locations and were moved to the shops_unmigrated table.");
+        }
+    }
+
+    /**
+     * world が埋まらなかった行を、文字列にした値で shops_unmigrated に移す。
+     * 同じ location の行が既にある場合は、shops にあった新しい方で置き換える。
+     *
+     * @return 移した行の数
+     */
+    private int moveUnsplitRows(@NotNull Connection connection) throws SQLException {
+        SchemaMigrator.createUnmigratedTable(connection);
+        int moved = 0;
+        try (Statement select = connection.createStatement();
+             PreparedStatement replace = connection.prepareStatement("delete from shops_unmigrated where location = ?");
+             PreparedStatement keep = connection.prepareStatement("insert into shops_unmigrated (location, buy_price, item, owner, quantity, sell_price, stock) values (?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement delete = connection.prepareStatement("delete from shops where location = ?")) {
+            try (ResultSet rows = select.executeQuery("select location, buy_price, item, owner, quantity, sell_price, stock from shops where world is null")) {
+                while (rows.next()) {
+                    String location = rows.getString("location");
+                    BigDecimal buyPrice = rows.getBigDecimal("buy_price");
+                    BigDecimal sellPrice = rows.getBigDecimal("sell_price");
+                    UUID owner = ShopManager.toUniqueId(rows.getBytes("owner"));
+
+                    replace.setString(1, location);
+                    replace.addBatch();
+                    keep.setString(1, location);
+                    keep.setString(2, buyPrice != null ? buyPrice.toPlainString() : null);
+                    keep.setString(3, rows.getString("item"));
+                    keep.setString(4, owner != null ? owner.toString() : null);
+                    keep.setObject(5, rows.getObject("quantity"));
+                    keep.setString(6, sellPrice != null ? sellPrice.toPlainString() : null);
+                    keep.setObject(7, rows.getObject("stock"));
+                    keep.addBatch();
+                    delete.setString(1, location);
+                    delete.addBatch();
+                    moved++;
+                }
+            }
+            replace.executeBatch();
+            keep.executeBatch();
+            delete.executeBatch();
+        }
+        connection.commit();
+        return moved;
+    }
+
+    /**
+     * world, x, y, z を not null にする。
+     * SQLiteは列の制約を変えられないので、最新のスキーマのテーブルに写して置き換える。置き換えは一つのコミットで行う。
+     */
+    private void makeNotNull(@NotNull Connection connection, boolean mysql) throws SQLException {
+        if (!SchemaMigrator.isNullable(connection, "shops", "world")) {
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            if (mysql) {
+                statement.executeUpdate("alter table shops modify column world varchar(100) not null, modify column x integer not null, modify column y integer not null, modify column z integer not null");
+            } else {
+                String columns = "location, world, x, y, z, owner, stock, quantity, item, buy_price, sell_price";
+                SchemaMigrator.createShopsTable(connection, "shops_relocating");
+                statement.executeUpdate("insert into shops_relocating (" + columns + ") select " + columns + " from shops");
+                statement.executeUpdate("drop table shops");
+                statement.executeUpdate("alter table shops_relocating rename to shops");
+            }
+        }
+        connection.commit();
+    }
+}
@@ -0,0 +1,177 @@
+package net.okocraft.chestshopsearcher.database;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ブロックの座標を一つの long に詰めたキー。
+ * <p>
+ * マインクラフトのブロック座標と同じく、上位26ビットにx、次の26ビットにz、下位12ビットにyを符号付きで詰める。
+ * ワールドは {@link WorldDictionary} の番号で別に持つ。どの変換もオブジェクトを作らない。
+ * 文字列のキー ({@code world,x,y,z}) はDBの主キーと表示のためだけに作る。
+ */
+public final class LocationKey {
+
+    private static final int XZ_BITS = 26;
+    private static final int Y_BITS = 12;
+    private static final long XZ_MASK = (1L << XZ_BITS) - 1;
+    private static final long Y_MASK = (1L << Y_BITS) - 1;
+    private static final int X_SHIFT = XZ_BITS + Y_BITS;
+    private static final int Z_SHIFT = Y_BITS;
+
+    private LocationKey() {
+    }
+
+    /**
+     * 座標を詰められるかどうかを調べる。
+     *
+     * @param x x座標
+     * @param y y座標
+     * @param z z座標
+     * @return 詰められるならtrue
+     */
+    public static boolean isPackable(int x, int y, int z) {
+        return fits(x, XZ_BITS) && fits(y, Y_BITS) && fits(z, XZ_BITS);
+    }
+
+    /**
+     * 座標を long に詰める。
+     *
+     * @param x x座標
+     * @param y y座標
+     * @param z z座標
+     * @return 詰めたキー
+     * @throws IllegalArgumentException 座標が詰められる範囲を超えているとき
+     */
+    public static long pack(int x, int y, int z) {
+        if (!isPackable(x, y, z)) {
+            throw new IllegalArgumentException("Coordinates out of range: " + x + ", " + y + ", " + z);
+        }
+        return ((x & XZ_MASK) << X_SHIFT) | ((z & XZ_MASK) << Z_SHIFT) | (y & Y_MASK);
+    }
+
+    public static int getX(long key) {
+        return (int) (key >> X_SHIFT);
+    }
+
+    public static int getY(long key) {
+        return (int) (key << (64 - Y_BITS) >> (64 - Y_BITS));
+    }
+
+    public static int getZ(long key) {
+        return (int) (key << (64 - X_SHIFT) >> (64 - XZ_BITS));
+    }
+
+    /**
+     * 表示やDBの主キーに使う文字列のキーを作る。
+     *
+     * @param world ワールド名
+     * @param key   詰めたキー
+     * @return {@code world,x,y,z} の形式の文字列
+     */
+    @NotNull
+    public static String toString(@NotNull String world, long key) {
+        return ShopManager.toDBKey(world, getX(key), getY(key), getZ(key));
+    }
+
+    /**
+     * 文字列のキー ({@code world,x,y,z}) からワールド名を取り出す。
+     *
+     * @param location 文字列のキー
+     * @return ワールド名
+     * @throws IllegalArgumentException 形式が違うとき
+     */
+    @NotNull
+    public static String parseWorld(@NotNull String location) {
+        return location.substring(0, lastCommas(location)[0]);
+    }
+
+    /**
+     * 文字列のキー ({@code world,x,y,z}) の座標を long に詰める。数値は区切りの位置から直接読む。
+     *
+     * @param location 文字列のキー
+     * @return 詰めたキー
+     * @throws IllegalArgumentException 形式が違うか、座標が詰められる範囲を超えているとき
+     */
+    public static long parse(@NotNull String location) {
+        int[] commas = lastCommas(location);
+        return pack(
+                Integer.parseInt(location, commas[0] + 1, commas[1], 10),
+                Integer.parseInt(location, commas[1] + 1, commas[2], 10),
+                Integer.parseInt(location, commas[2] + 1, location.length(), 10)
+        );
+    }
+
+    @NotNull
+    private static int[] lastCommas(@NotNull String location) {
+        int third = location.lastIndexOf(',');
+        int second = third <= 0 ? -1 : location.lastIndexOf(',', third - 1);
+        int first = second <= 0 ? -1 : location.lastIndexOf(',', second - 1);
+        if (first <= 0) {
+            throw new IllegalArgumentException("location parts format must be world,x,y,z.");
+        }
+        return new int[]{first, second, third};
+    }
+
+    /**
+     * 文字列のキーが {@code world,x,y,z} と一致するかどうかを、文字列を作らずに調べる。
+     *
+     * @param location 文字列のキー
+     * @param world    ワールド名
+     * @param x        x座標
+     * @param y        y座標
+     * @param z        z座標
+     * @return 一致すればtrue
+     */
+    public static boolean matches(@NotNull String location, @NotNull String world, int x, int y, int z) {
+        int index = world.length();
+        if (!location.startsWith(world) || !isComma(location, index)) {
+            return false;
+        }
+        index = matchInt(location, index + 1, x);
+        if (index < 0 || !isComma(location, index)) {
+            return false;
+        }
+        index = matchInt(location, index + 1, y);
+        if (index < 0 || !isComma(location, index)) {
+            return false;
+        }
+        return matchInt(location, index + 1, z) == location.length();
+    }
+
+    private static boolean isComma(@NotNull String s, int index) {
+        return index < s.length() && s.charAt(index) == ',';
+    }
+
+    /**
+     * {@code s} の {@code start} から {@code value} の十進表記が続くかどうかを調べる。
+     *
+     * @return 続いていればその直後の位置、そうでなければ-1
+     */
+    private static int matchInt(@NotNull String s, int start, int value) {
+        long remaining = value;
+        int index = start;
+        if (remaining < 0) {
+            if (index >= s.length() || s.charAt(index) != '-') {
+                return -1;
+            }
+            index++;
+            remaining = -remaining;
+        }
+
+        long divisor = 1;
+        while (divisor * 10 <= remaining) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            if (index >= s.length() || s.charAt(index) != (char) ('0' + remaining / divisor % 10)) {
+                return -1;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    private static boolean fits(int value, int bits) {
+        return value >= -(1 << (bits - 1)) && value < (1 << (bits - 1));
+    }
+}
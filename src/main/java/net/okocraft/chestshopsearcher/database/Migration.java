@@ -0,0 +1,39 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * スキーマの移行の一段階。{@link SchemaMigrator} がバージョンの小さい順に実行する。
+ * <p>
+ * 移行は途中で止まっても次回の起動時にもう一度実行されるので、既に適用済みの変更を確かめてから行うこと。
+ */
+interface Migration {
+
+    /**
+     * この移行を適用した後のスキーマのバージョンを取得する。1から順に付ける。
+     *
+     * @return スキーマのバージョン
+     */
+    int getVersion();
+
+    /**
+     * ログに出す移行の説明を取得する。
+     *
+     * @return 移行の説明
+     */
+    @NotNull
+    String getDescription();
+
+    /**
+     * 移行を実行する。コネクションは自動コミットが無効なので、必要な単位でコミットすること。
+     * 最後の変更はコミットせずに戻ってよく、その場合はバージョンの記録と同じコミットで確定する。
+     *
+     * @param connection 移行に使うコネクション
+     * @param mysql      MySQLならtrue、SQLiteならfalse
+     * @throws SQLException 移行に失敗したとき
+     */
+    void migrate(@NotNull Connection connection, boolean mysql) throws SQLException;
+}
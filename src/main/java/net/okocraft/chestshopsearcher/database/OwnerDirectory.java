@@ -0,0 +1,285 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import com.Acrobot.ChestShop.Database.Account;
+import com.Acrobot.ChestShop.UUIDs.NameManager;
+
+import net.okocraft.chestshopsearcher.config.Config;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ショップの持ち主の名前とUUIDを両方向に引く辞書。
+ * <p>
+ * 検索結果の表示や持ち主の条件の解釈のたびに {@code Bukkit.getOfflinePlayer} を呼ぶと、
+ * 名前からの場合はプロフィールの問い合わせでスレッドを止めることがあるので、この辞書で引く。
+ * 辞書に無い持ち主はChestShopの {@link NameManager} のアカウントから読み、辞書に加える。
+ * アカウントの読み込みはDBに問い合わせるので、メインスレッドでは行わず、専用の一つのスレッドで順に行う。
+ * メインスレッドやタブ補完からは {@link #getCachedName(UUID)} と {@link #getCachedUniqueId(String)} で辞書だけを引き、
+ * 辞書に無いものは {@link #requestName(UUID)} と {@link #requestUniqueId(String)} で非同期に読む。
+ * アカウントが無かった名前とUUIDも覚えておき、同じものを何度も問い合わせない。
+ * プレイヤーが参加したときには、そのプレイヤーの名前で更新する。
+ * <p>
+ * 件数の上限を超えると最も長く使われていないものから追い出す。名前は大文字と小文字を区別せずに引く。
+ * どのスレッドからでも使える。
+ */
+public final class OwnerDirectory {
+
+    private static final OwnerDirectory INSTANCE = new OwnerDirectory();
+
+    private final int maximumSize = Math.max(1, Config.getInstance().getOwnerCacheSize());
+    private final Map<UUID, String> names = new LinkedHashMap<>(16, 0.75f, true);
+    /** 小文字にした名前からUUIDへの対応。{@link #names} にあるものだけを持つ。 */
+    private final Map<String, UUID> uniqueIds = new HashMap<>();
+    /** アカウントが無かったUUID。値は使わない。 */
+    private final Map<UUID, Boolean> missingIds = new LinkedHashMap<>(16, 0.75f, true);
+    /** アカウントが無かった小文字の名前。値は使わない。 */
+    private final Map<String, Boolean> missingNames = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** 読み込み中のUUIDと、その結果。同じUUIDを同時に二度読まない。 */
+    private final Map<UUID, CompletableFuture<String>> pendingNames = new ConcurrentHashMap<>();
+    /** 読み込み中の小文字の名前と、その結果。 */
+    private final Map<String, CompletableFuture<UUID>> pendingIds = new ConcurrentHashMap<>();
+
+    /** ChestShopのアカウントを読むスレッド。ChestShopのDBを同時に使わないように一つだけにする。 */
+    private final ExecutorService lookups = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ChestShopSearcher-Owners");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private OwnerDirectory() {
+    }
+
+    @NotNull
+    public static OwnerDirectory getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 辞書だけからUUIDに対応する持ち主の名前を取得する。DBには問い合わせないので、どのスレッドからでも呼べる。
+     *
+     * @param uuid 持ち主のUUID
+     * @return 持ち主の名前。辞書に無い場合はnull
+     */
+    @Nullable
+    public synchronized String getCachedName(@NotNull UUID uuid) {
+        return names.get(uuid);
+    }
+
+    /**
+     * 辞書だけから名前に対応する持ち主のUUIDを取得する。大文字と小文字は区別しない。DBには問い合わせないので、どのスレッドからでも呼べる。
+     *
+     * @param name 持ち主の名前
+     * @return 持ち主のUUID。辞書に無い場合はnull
+     */
+    @Nullable
+    public synchronized UUID getCachedUniqueId(@NotNull String name) {
+        UUID uuid = uniqueIds.get(name.toLowerCase(Locale.ROOT));
+        if (uuid != null) {
+            // 使ったことを追い出しの順番に反映する。
+            names.get(uuid);
+        }
+        return uuid;
+    }
+
+    /**
+     * UUIDから持ち主の名前を取得する。辞書に無い場合はChestShopのアカウントを別のスレッドで読む。
+     *
+     * @param uuid 持ち主のUUID
+     * @return 持ち主の名前。アカウントが無い場合はnullで完了する。辞書にあるかアカウントが無いと分かっている場合は完了済み
+     */
+    @NotNull
+    public CompletableFuture<String> requestName(@NotNull UUID uuid) {
+        synchronized (this) {
+            String name = names.get(uuid);
+            if (name != null || missingIds.containsKey(uuid)) {
+                return CompletableFuture.completedFuture(name);
+            }
+        }
+        return request(pendingNames, uuid, this::lookupName);
+    }
+
+    /**
+     * 名前から持ち主のUUIDを取得する。大文字と小文字は区別しない。辞書に無い場合はChestShopのアカウントを別のスレッドで読む。
+     *
+     * @param name 持ち主の名前
+     * @return 持ち主のUUID。アカウントが無い場合はnullで完了する。辞書にあるかアカウントが無いと分かっている場合は完了済み
+     */
+    @NotNull
+    public CompletableFuture<UUID> requestUniqueId(@NotNull String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        synchronized (this) {
+            UUID uuid = uniqueIds.get(key);
+            if (uuid != null || missingNames.containsKey(key)) {
+                return CompletableFuture.completedFuture(uuid);
+            }
+        }
+        return request(pendingIds, key, this::lookupUniqueId);
+    }
+
+    /**
+     * 複数の持ち主の名前をまとめて取得する。辞書に無いものはChestShopのアカウントを別のスレッドで順に読む。
+     *
+     * @param uuids 持ち主のUUID
+     * @return UUIDと名前のマップ。アカウントが無かったUUIDは含めない
+     */
+    @NotNull
+    public CompletableFuture<Map<UUID, String>> requestNames(@NotNull Collection<UUID> uuids) {
+        Map<UUID, CompletableFuture<String>> requests = new HashMap<>(uuids.size() * 2);
+        for (UUID uuid : uuids) {
+            requests.put(uuid, requestName(uuid));
+        }
+        return CompletableFuture.allOf(requests.values().toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<UUID, String> result = new HashMap<>(requests.size() * 2);
+            requests.forEach((uuid, request) -> {
+                String name = request.join();
+                if (name != null) {
+                    result.put(uuid, name);
+                }
+            });
+            return result;
+        });
+    }
+
+    @NotNull
+    private <K, V> CompletableFuture<V> request(@NotNull Map<K, CompletableFuture<V>> pending, @NotNull K key,
+                                               @NotNull Function<K, V> lookup) {
+        CompletableFuture<V> created = new CompletableFuture<>();
+        CompletableFuture<V> existing = pending.putIfAbsent(key, created);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            lookups.execute(() -> {
+                try {
+                    created.complete(lookup.apply(key));
+                } catch (Throwable t) {
+                    created.completeExceptionally(t);
+                } finally {
+                    pending.remove(key, created);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 止めた後は読まない。
+            pending.remove(key, created);
+            created.complete(null);
+        }
+        return created;
+    }
+
+    @Nullable
+    private String lookupName(@NotNull UUID uuid) {
+        Account account = NameManager.getAccount(uuid);
+        if (account == null || account.getName() == null) {
+            synchronized (this) {
+                missingIds.put(uuid, Boolean.TRUE);
+                trim(missingIds);
+            }
+            return null;
+        }
+        put(uuid, account.getName());
+        return account.getName();
+    }
+
+    @Nullable
+    private UUID lookupUniqueId(@NotNull String key) {
+        Account account = NameManager.getAccount(key);
+        if (account == null || account.getUuid() == null || account.getName() == null) {
+            synchronized (this) {
+                missingNames.put(key, Boolean.TRUE);
+                trim(missingNames);
+            }
+            return null;
+        }
+        put(account.getUuid(), account.getName());
+        return account.getUuid();
+    }
+
+    /**
+     * 持ち主の名前を辞書に加える。同じUUIDに別の名前があった場合は置き換える。
+     *
+     * @param uuid 持ち主のUUID
+     * @param name 持ち主の名前
+     * @return 置き換えた名前。無かったか同じだった場合はnull
+     */
+    @Nullable
+    public synchronized String put(@NotNull UUID uuid, @NotNull String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        missingIds.remove(uuid);
+        missingNames.remove(key);
+
+        String previous = names.put(uuid, name);
+        if (previous != null) {
+            if (previous.equals(name)) {
+                return null;
+            }
+            uniqueIds.remove(previous.toLowerCase(Locale.ROOT), uuid);
+        }
+        // 名前を他のプレイヤーが使っていた場合は、新しい方だけを残す。
+        UUID other = uniqueIds.put(key, uuid);
+        if (other != null && !other.equals(uuid)) {
+            names.remove(other);
+        }
+
+        Iterator<Map.Entry<UUID, String>> it = names.entrySet().iterator();
+        while (names.size() > maximumSize && it.hasNext()) {
+            Map.Entry<UUID, String> eldest = it.next();
+            uniqueIds.remove(eldest.getValue().toLowerCase(Locale.ROOT), eldest.getKey());
+            it.remove();
+        }
+        return previous;
+    }
+
+    private void trim(@NotNull Map<?, Boolean> missing) {
+        Iterator<?> it = missing.keySet().iterator();
+        while (missing.size() > maximumSize && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * 辞書にある持ち主の数を取得する。
+     *
+     * @return 持ち主の数
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+
+    /**
+     * アカウントを読むスレッドを止める。読まずに捨てた分も含め、読み込み中の結果は全てnullで完了させ、待っている処理を止めたままにしない。
+     */
+    public void shutdown() {
+        lookups.shutdownNow();
+        try {
+            lookups.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        completePending(pendingNames);
+        completePending(pendingIds);
+    }
+
+    private static <K, V> void completePending(@NotNull Map<K, CompletableFuture<V>> pending) {
+        Iterator<CompletableFuture<V>> it = pending.values().iterator();
+        while (it.hasNext()) {
+            it.next().complete(null);
+            it.remove();
+        }
+    }
+}
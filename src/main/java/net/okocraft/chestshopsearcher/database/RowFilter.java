@@ -0,0 +1,159 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@link SearchQuery} を {@link ShopColumns} の行に対する比較にしたもの。
+ * <p>
+ * ワールド、アイテム、持ち主は辞書の番号に、価格は10000倍した long の範囲に先に変換しておくので、
+ * 行ごとの判定はプリミティブの比較だけになる。条件の無い項目は型の最小値から最大値までの範囲にする。
+ */
+final class RowFilter {
+
+    /** 条件が無いことを表す番号。 */
+    private static final int ANY = -1;
+    /** 辞書に無い値を指定されたため、どの行にも当てはまらないことを表す番号。 */
+    private static final int NONE = -2;
+
+    private final ShopColumns columns;
+
+    final int world;
+    final int item;
+    final int owner;
+    final int minX;
+    final int maxX;
+    final int minY;
+    final int maxY;
+    final int minZ;
+    final int maxZ;
+    final long minBuyPrice;
+    final long maxBuyPrice;
+    final long minSellPrice;
+    final long maxSellPrice;
+    final int minStock;
+    final int maxStock;
+    final int minQuantity;
+    final int maxQuantity;
+
+    RowFilter(@NotNull ShopColumns columns, @NotNull SearchQuery query) {
+        this.columns = columns;
+
+        world = query.getWorld() == null ? ANY : orNone(WorldDictionary.getInstance().getIdIfPresent(query.getWorld()));
+        item = query.getItem() == null ? ANY : orNone(columns.getItems().get(query.getItem()));
+        owner = query.getOwner() == null ? ANY : orNone(columns.getOwners().get(query.getOwner()));
+
+        minX = min(query.getX());
+        maxX = max(query.getX());
+        minY = min(query.getY());
+        maxY = max(query.getY());
+        minZ = min(query.getZ());
+        maxZ = max(query.getZ());
+        minBuyPrice = minPrice(query.getBuyPrice());
+        maxBuyPrice = maxPrice(query.getBuyPrice());
+        minSellPrice = minPrice(query.getSellPrice());
+        maxSellPrice = maxPrice(query.getSellPrice());
+        minStock = min(query.getStock());
+        maxStock = max(query.getStock());
+        minQuantity = min(query.getQuantity());
+        maxQuantity = max(query.getQuantity());
+    }
+
+    /**
+     * どの行にも当てはまらないことが分かっているかどうかを調べる。
+     *
+     * @return どの行にも当てはまらないならtrue
+     */
+    boolean isEmpty() {
+        return world == NONE || item == NONE || owner == NONE;
+    }
+
+    /**
+     * 座標、価格、在庫、取引数のいずれかに範囲の条件があるかどうかを調べる。
+     *
+     * @return 範囲の条件があればtrue
+     */
+    boolean hasRanges() {
+        return minX != Integer.MIN_VALUE || maxX != Integer.MAX_VALUE
+                || minY != Integer.MIN_VALUE || maxY != Integer.MAX_VALUE
+                || minZ != Integer.MIN_VALUE || maxZ != Integer.MAX_VALUE
+                || minBuyPrice != Long.MIN_VALUE || maxBuyPrice != Long.MAX_VALUE
+                || minSellPrice != Long.MIN_VALUE || maxSellPrice != Long.MAX_VALUE
+                || minStock != Integer.MIN_VALUE || maxStock != Integer.MAX_VALUE
+                || minQuantity != Integer.MIN_VALUE || maxQuantity != Integer.MAX_VALUE;
+    }
+
+    /**
+     * 行が全ての条件に当てはまるかどうかを調べる。墓標の行は当てはまらない。
+     *
+     * @param row 行
+     * @return 当てはまればtrue
+     */
+    boolean test(int row) {
+        if (columns.isDeleted(row)) {
+            return false;
+        }
+        if ((world != ANY && columns.getWorld(row) != world)
+                || (item != ANY && columns.getItem(row) != item)
+                || (owner != ANY && columns.getOwner(row) != owner)) {
+            return false;
+        }
+
+        int stock = columns.getStock(row);
+        int quantity = columns.getQuantity(row);
+        long buyPrice = columns.getBuyPrice(row);
+        long sellPrice = columns.getSellPrice(row);
+        if (stock < minStock || stock > maxStock || quantity < minQuantity || quantity > maxQuantity
+                || buyPrice < minBuyPrice || buyPrice > maxBuyPrice || sellPrice < minSellPrice || sellPrice > maxSellPrice) {
+            return false;
+        }
+
+        long position = columns.getPosition(row);
+        int x = LocationKey.getX(position);
+        int y = LocationKey.getY(position);
+        int z = LocationKey.getZ(position);
+        return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+    }
+
+    private static int orNone(int id) {
+        return id < 0 ? NONE : id;
+    }
+
+    private static int min(SearchQuery.Range<Integer> range) {
+        return range == null || range.getMin() == null ? Integer.MIN_VALUE : range.getMin();
+    }
+
+    private static int max(SearchQuery.Range<Integer> range) {
+        return range == null || range.getMax() == null ? Integer.MAX_VALUE : range.getMax();
+    }
+
+    private static long minPrice(SearchQuery.Range<BigDecimal> range) {
+        if (range == null || range.getMin() == null) {
+            return Long.MIN_VALUE;
+        }
+        return toScaledClamped(range.getMin(), RoundingMode.CEILING);
+    }
+
+    private static long maxPrice(SearchQuery.Range<BigDecimal> range) {
+        if (range == null || range.getMax() == null) {
+            return Long.MAX_VALUE;
+        }
+        return toScaledClamped(range.getMax(), RoundingMode.FLOOR);
+    }
+
+    /**
+     * 範囲の端を10000倍した long にする。端の内側に丸め、long に収まらない場合は最小値か最大値にする。
+     */
+    private static long toScaledClamped(@NotNull BigDecimal price, @NotNull RoundingMode roundingMode) {
+        BigDecimal scaled = price.setScale(ShopColumns.PRICE_SCALE, roundingMode).movePointRight(ShopColumns.PRICE_SCALE);
+        if (scaled.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0) {
+            return Long.MAX_VALUE;
+        }
+        if (scaled.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) < 0) {
+            return Long.MIN_VALUE;
+        }
+        return scaled.longValueExact();
+    }
+}
@@ -0,0 +1,28 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.Arrays;
+
+/**
+ * {@link ShopColumns} の行番号を追加していくだけの int のリスト。
+ * 行を消すときは {@link ShopColumns} の墓標に任せ、このリストからは消さない。
+ */
+final class RowList {
+
+    private int[] rows = new int[4];
+    private int size;
+
+    void add(int row) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        rows[size++] = row;
+    }
+
+    int get(int index) {
+        return rows[index];
+    }
+
+    int size() {
+        return size;
+    }
+}
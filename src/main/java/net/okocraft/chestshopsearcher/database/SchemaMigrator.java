@@ -0,0 +1,234 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import net.okocraft.chestshopsearcher.Main;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * shopsテーブルのスキーマを最新のバージョンに移行するクラス。
+ * <p>
+ * 適用済みのバージョンは schema_version テーブルに記録し、まだ適用していない {@link Migration} をバージョンの順に実行する。
+ * 一つの移行が終わるたびに、その移行の最後の変更と同じコミットでバージョンを記録するので、
+ * 途中で失敗した場合は次回の起動時にその移行から再開する。
+ * MySQLではDDLが暗黙にコミットされるので、移行の最後の変更とバージョンの記録の間で止まることがある。
+ * そのため各移行は、既に適用済みのスキーマに対してもう一度実行しても何も壊さないようにする。
+ * <p>
+ * shopsテーブルが無い場合は最新のスキーマで作成する。テーブルの定義は {@link #createShopsTable(Connection, String)} だけに置き、
+ * {@link Shop} の対応付けと合わせる。
+ */
+final class SchemaMigrator {
+
+    /** 全ての移行。バージョンの小さい順に並べる。 */
+    private static final List<Migration> MIGRATIONS = List.of(
+            new TypedColumnsMigration(),
+            new LocationColumnsMigration(),
+            new SecondaryIndexesMigration()
+    );
+
+    private final DatabaseManager<?> databaseManager;
+    private final Logger log = Main.getInstance().getLogger();
+
+    SchemaMigrator(@NotNull DatabaseManager<?> databaseManager) {
+        this.databaseManager = databaseManager;
+    }
+
+    /**
+     * 未適用の移行を順番に実行する。
+     *
+     * @throws SQLException 移行に失敗したとき。それまでに終わった移行は記録されており、次回の起動時に続きから再開する。
+     */
+    void migrate() throws SQLException {
+        boolean mysql = databaseManager.isMySQL();
+        databaseManager.withConnection(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("create table if not exists schema_version (version integer not null)");
+            }
+            connection.commit();
+
+            // 置き換えの途中で止まった shops_migrating がある場合は、空のテーブルを作らずに移行に任せる。
+            if (!hasTable(connection, "shops") && !hasTable(connection, "shops_migrating")) {
+                createShopsTable(connection, "shops");
+                connection.commit();
+                log.info("Created the shops table.");
+            }
+
+            int version = getVersion(connection);
+            int applied = 0;
+            for (Migration migration : MIGRATIONS) {
+                if (migration.getVersion() <= version) {
+                    continue;
+                }
+
+                log.info("Applying schema migration " + migration.getVersion() + ": " + migration.getDescription());
+                long start = System.nanoTime();
+                migration.migrate(connection, mysql);
+                setVersion(connection, migration.getVersion());
+                connection.commit();
+                long elapsed = (System.nanoTime() - start) / 1_000_000L;
+                log.info("Schema migration " + migration.getVersion() + " finished in " + elapsed + " ms.");
+                applied++;
+            }
+
+            if (applied == 0) {
+                log.info("Database schema is up to date (version " + version + ").");
+            }
+            return null;
+        });
+    }
+
+    private int getVersion(@NotNull Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("select max(version) from schema_version")) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+
+    private void setVersion(@NotNull Connection connection, int version) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("insert into schema_version (version) values (?)")) {
+            statement.setInt(1, version);
+            statement.executeUpdate();
+        }
+    }
+
+    /**
+     * 最新のスキーマでshopsテーブルを作成する。列は {@link Shop} の対応付けと合わせる。
+     *
+     * @param connection コネクション
+     * @param table      作成するテーブル名
+     * @throws SQLException テーブルの作成に失敗したとき
+     */
+    static void createShopsTable(@NotNull Connection connection, @NotNull String table) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("create table if not exists " + table + " (location varchar(100) not null, world varchar(100) not null, x integer not null, y integer not null, z integer not null, owner binary(16) not null, stock integer not null, quantity integer not null, item varchar(255) not null, buy_price decimal(19,4) not null, sell_price decimal(19,4) not null, primary key (location))");
+        }
+    }
+
+    /**
+     * 移行できなかった行を元の型のまま残す shops_unmigrated テーブルが無ければ作成する。
+     *
+     * @param connection コネクション
+     * @throws SQLException テーブルの作成に失敗したとき
+     */
+    static void createUnmigratedTable(@NotNull Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("create table if not exists shops_unmigrated (location varchar(100) not null, buy_price varchar(255), item varchar(255), owner varchar(36), quantity integer, sell_price varchar(255), stock integer, primary key (location))");
+        }
+    }
+
+    /**
+     * テーブルがあるかどうかを調べる。
+     *
+     * @param connection コネクション
+     * @param table      テーブル名
+     * @return テーブルがあればtrue
+     * @throws SQLException メタデータの取得に失敗したとき
+     */
+    static boolean hasTable(@NotNull Connection connection, @NotNull String table) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet tables = metaData.getTables(connection.getCatalog(), null, table, null)) {
+            return tables.next();
+        }
+    }
+
+    /**
+     * テーブルに列があるかどうかを調べる。
+     *
+     * @param connection コネクション
+     * @param table      テーブル名
+     * @param column     列名
+     * @return 列があればtrue
+     * @throws SQLException メタデータの取得に失敗したとき
+     */
+    static boolean hasColumn(@NotNull Connection connection, @NotNull String table, @NotNull String column) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet columns = metaData.getColumns(connection.getCatalog(), null, table, column)) {
+            return columns.next();
+        }
+    }
+
+    /**
+     * 列の型の名前を取得する。
+     *
+     * @param connection コネクション
+     * @param table      テーブル名
+     * @param column     列名
+     * @return 大文字にした型の名前。列が無ければnull
+     * @throws SQLException メタデータの取得に失敗したとき
+     */
+    @Nullable
+    static String getColumnType(@NotNull Connection connection, @NotNull String table, @NotNull String column) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet columns = metaData.getColumns(connection.getCatalog(), null, table, column)) {
+            String type = columns.next() ? columns.getString("TYPE_NAME") : null;
+            return type != null ? type.toUpperCase(Locale.ROOT) : null;
+        }
+    }
+
+    /**
+     * 列にnullを入れられるかどうかを調べる。
+     *
+     * @param connection コネクション
+     * @param table      テーブル名
+     * @param column     列名
+     * @return nullを入れられればtrue。列が無ければfalse
+     * @throws SQLException メタデータの取得に失敗したとき
+     */
+    static boolean isNullable(@NotNull Connection connection, @NotNull String table, @NotNull String column) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet columns = metaData.getColumns(connection.getCatalog(), null, table, column)) {
+            return columns.next() && columns.getInt("NULLABLE") != DatabaseMetaData.columnNoNulls;
+        }
+    }
+
+    /**
+     * テーブルにインデックスがあるかどうかを調べる。
+     *
+     * @param connection コネクション
+     * @param table      テーブル名
+     * @param index      インデックス名
+     * @return インデックスがあればtrue
+     * @throws SQLException メタデータの取得に失敗したとき
+     */
+    static boolean hasIndex(@NotNull Connection connection, @NotNull String table, @NotNull String index) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        try (ResultSet indexes = metaData.getIndexInfo(connection.getCatalog(), null, table, false, false)) {
+            while (indexes.next()) {
+                if (index.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * インデックスがまだ無ければ作成してコミットする。
+     * MySQLは {@code create index if not exists} を使えないので、メタデータで確かめてから作成する。
+     *
+     * @param connection コネクション
+     * @param table      テーブル名
+     * @param index      インデックス名
+     * @param columns    インデックスを張る列。{@code "world, x, z, y"} のように書く
+     * @throws SQLException インデックスの作成に失敗したとき
+     */
+    static void createIndex(@NotNull Connection connection, @NotNull String table, @NotNull String index, @NotNull String columns) throws SQLException {
+        if (hasIndex(connection, table, index)) {
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("create index " + index + " on " + table + " (" + columns + ")");
+        }
+        connection.commit();
+    }
+}
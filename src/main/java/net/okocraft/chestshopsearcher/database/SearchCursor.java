@@ -0,0 +1,188 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 検索結果を1ページずつ読むためのカーソル。
+ * <p>
+ * 結果そのものは持たず、検索条件と各ページの最後の location だけを覚えておき、
+ * ページを開くたびにその続きから1ページ分だけを {@link ShopSearcher} に問い合わせる。
+ * まだ開いていないページを指定された場合は、間のページの境界を順に辿る。
+ * <p>
+ * 並び順を指定した場合は、最初に開いたときに上位 {@code limit} 件の location だけを並び順に読んで覚えておき、
+ * ページごとにその location のショップを取得する。
+ * 検索スレッドから使うので、ページの境界を読み書きするメソッドは同期する。
+ */
+public final class SearchCursor {
+
+    private final ShopSearcher searcher;
+    private final SearchQuery query;
+    private final int pageSize;
+    @Nullable
+    private final SearchOrder order;
+    private final int limit;
+
+    /** i番目の要素はi+1ページ目の最後の location。 */
+    private final List<String> pageEnds = new ArrayList<>();
+    private long total = -1;
+    /** 並び順を指定した場合の上位の location。まだ読んでいなければnull。 */
+    @Nullable
+    private String[] ranked;
+
+    public SearchCursor(@NotNull ShopSearcher searcher, @NotNull SearchQuery query, int pageSize) {
+        this(searcher, query, null, -1, pageSize);
+    }
+
+    /**
+     * 並び順と件数の上限を指定したカーソルを作る。
+     *
+     * @param searcher 検索に使うもの
+     * @param query    検索条件
+     * @param order    並び順。nullの場合は location の順にキーセット方式で読み、{@code limit} は使わない
+     * @param limit    並び順の上位から取得する最大件数
+     * @param pageSize 1ページの件数
+     */
+    public SearchCursor(@NotNull ShopSearcher searcher, @NotNull SearchQuery query, @Nullable SearchOrder order, int limit, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive.");
+        }
+        if (order != null && limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive.");
+        }
+        this.searcher = searcher;
+        this.query = query;
+        this.pageSize = pageSize;
+        this.order = order;
+        this.limit = limit;
+    }
+
+    @NotNull
+    public SearchQuery getQuery() {
+        return query;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * 条件に当てはまるショップの数を取得する。最初に呼んだときだけ数える。
+     *
+     * @return 条件に当てはまるショップの数
+     */
+    public synchronized long getTotal() {
+        if (total < 0) {
+            total = order != null ? getRanked().length : searcher.count(query);
+        }
+        return total;
+    }
+
+    /**
+     * 全体のページ数を取得する。
+     *
+     * @return 全体のページ数
+     */
+    public synchronized int getPageCount() {
+        return (int) ((getTotal() + pageSize - 1) / pageSize);
+    }
+
+    /**
+     * 指定したページのショップを取得する。
+     *
+     * @param page ページ番号 (1から)
+     * @return そのページのショップ。範囲外のページでは空のリスト
+     */
+    @NotNull
+    public synchronized List<Shop> getPage(int page) {
+        if (page <= 0) {
+            return List.of();
+        }
+
+        if (order != null) {
+            String[] ranked = getRanked();
+            int from = (page - 1) * pageSize;
+            if (from >= ranked.length) {
+                return List.of();
+            }
+            return searcher.find(Arrays.asList(ranked).subList(from, Math.min(ranked.length, from + pageSize)));
+        }
+
+        while (pageEnds.size() < page - 1) {
+            List<Shop> skipped = fetch(pageEnds.size() + 1);
+            if (skipped.size() < pageSize) {
+                return List.of();
+            }
+        }
+        return fetch(page);
+    }
+
+    /**
+     * 指定したページのショップと全体の件数をまとめて読む。
+     *
+     * @param page ページ番号 (1から)
+     * @return 読んだページ
+     */
+    @NotNull
+    public synchronized Page read(int page) {
+        return new Page(page, getTotal(), getPageCount(), getPage(page));
+    }
+
+    @NotNull
+    private String[] getRanked() {
+        if (ranked == null) {
+            ranked = searcher.top(query, Objects.requireNonNull(order), limit).toArray(new String[0]);
+        }
+        return ranked;
+    }
+
+    @NotNull
+    private List<Shop> fetch(int page) {
+        String after = page == 1 ? null : pageEnds.get(page - 2);
+        List<Shop> shops = searcher.page(query, after, pageSize);
+        if (!shops.isEmpty() && pageEnds.size() == page - 1) {
+            pageEnds.add(shops.get(shops.size() - 1).getLocation());
+        }
+        return shops;
+    }
+
+    /**
+     * 読み終わった1ページ分の結果。
+     */
+    public static final class Page {
+
+        private final int number;
+        private final long total;
+        private final int pageCount;
+        private final List<Shop> shops;
+
+        private Page(int number, long total, int pageCount, @NotNull List<Shop> shops) {
+            this.number = number;
+            this.total = total;
+            this.pageCount = pageCount;
+            this.shops = shops;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        @NotNull
+        public List<Shop> getShops() {
+            return shops;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.function.Function;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 検索条件に使えるショップの項目。
+ */
+public enum SearchField {
+
+    WORLD("world", Shop::getWorld),
+    X("x", Shop::getX),
+    Y("y", Shop::getY),
+    Z("z", Shop::getZ),
+    ITEM("item", Shop::getItem),
+    OWNER("ownerUniqueId", Shop::getOwnerUniqueId),
+    BUY_PRICE("buyPrice", Shop::getBuyPrice),
+    SELL_PRICE("sellPrice", Shop::getSellPrice),
+    STOCK("stock", Shop::getStock),
+    QUANTITY("quantity", Shop::getQuantity);
+
+    private final String property;
+    private final Function<Shop, ?> getter;
+
+    SearchField(@NotNull String property, @NotNull Function<Shop, ?> getter) {
+        this.property = property;
+        this.getter = getter;
+    }
+
+    /**
+     * JPQLで使う {@link Shop} のプロパティ名を取得する。
+     *
+     * @return プロパティ名
+     */
+    @NotNull
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * ショップからこの項目の値を取得する。
+     *
+     * @param shop ショップ
+     * @return 値
+     */
+    @Nullable
+    public Object get(@NotNull Shop shop) {
+        return getter.apply(shop);
+    }
+}
@@ -0,0 +1,142 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 検索結果の並び順。同じ値のショップは場所の順に並べる。
+ * DBでは {@code order by} に、メモリ上のインデックスでは {@link ShopColumns} の行の比較にする。
+ * 場所の順はDBでは location の文字列の順、メモリ上ではワールド名、x、y、zの順で、同じ検索の中では変わらない。
+ */
+public final class SearchOrder {
+
+    public enum Kind {
+        /** 場所の順。 */
+        LOCATION,
+        /** 1個あたりの販売価格の昇順。販売していないショップは含めない。 */
+        UNIT_PRICE,
+        /** 買取価格の降順。 */
+        SELL_PRICE,
+        /** 在庫の降順。 */
+        STOCK,
+        /** 基準の座標からの距離の昇順。 */
+        DISTANCE
+    }
+
+    private final Kind kind;
+    private final int originX;
+    private final int originY;
+    private final int originZ;
+
+    private SearchOrder(@NotNull Kind kind, int originX, int originY, int originZ) {
+        this.kind = kind;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+    }
+
+    /**
+     * 基準の座標を使わない並び順を作る。
+     *
+     * @param kind 並び順の種類。{@link Kind#DISTANCE} は使えない
+     * @return 並び順
+     */
+    @NotNull
+    public static SearchOrder of(@NotNull Kind kind) {
+        if (kind == Kind.DISTANCE) {
+            throw new IllegalArgumentException("Use SearchOrder#distance(int, int, int) to sort by distance.");
+        }
+        return new SearchOrder(kind, 0, 0, 0);
+    }
+
+    /**
+     * 基準の座標からの距離の並び順を作る。
+     *
+     * @param x 基準のx座標
+     * @param y 基準のy座標
+     * @param z 基準のz座標
+     * @return 並び順
+     */
+    @NotNull
+    public static SearchOrder distance(int x, int y, int z) {
+        return new SearchOrder(Kind.DISTANCE, x, y, z);
+    }
+
+    @NotNull
+    public Kind getKind() {
+        return kind;
+    }
+
+    public int getOriginX() {
+        return originX;
+    }
+
+    public int getOriginY() {
+        return originY;
+    }
+
+    public int getOriginZ() {
+        return originZ;
+    }
+
+    /**
+     * この並び順の対象を絞るJPQLの条件を取得する。
+     *
+     * @param alias エンティティの別名
+     * @return 条件。絞らない場合はnull
+     */
+    @Nullable
+    String getJpqlCondition(@NotNull String alias) {
+        if (kind == Kind.UNIT_PRICE) {
+            return alias + ".buyPrice >= 0 and " + alias + ".quantity > 0";
+        }
+        return null;
+    }
+
+    /**
+     * JPQLの order by 句の中身を取得する。基準の座標は位置パラメータにするので、種類ごとに同じ文字列になる。
+     *
+     * @param kind       並び順の種類
+     * @param alias      エンティティの別名
+     * @param firstIndex 最初の位置パラメータの番号
+     * @return order by 句の中身
+     */
+    @NotNull
+    static String getJpqlOrderBy(@NotNull Kind kind, @NotNull String alias, int firstIndex) {
+        String location = alias + ".location";
+        switch (kind) {
+            case UNIT_PRICE:
+                // 整数の値の価格はSQLiteでは整数として比べられ、割り算が切り捨てになるので小数にしてから割る。
+                return alias + ".buyPrice * 1.0 / " + alias + ".quantity, " + location;
+            case SELL_PRICE:
+                return alias + ".sellPrice desc, " + location;
+            case STOCK:
+                return alias + ".stock desc, " + location;
+            case DISTANCE:
+                return square(alias + ".x", firstIndex) + " + " + square(alias + ".y", firstIndex + 1) + " + "
+                        + square(alias + ".z", firstIndex + 2) + ", " + location;
+            default:
+                return location;
+        }
+    }
+
+    @NotNull
+    private static String square(@NotNull String path, int index) {
+        return "(" + path + " - ?" + index + ") * (" + path + " - ?" + index + ")";
+    }
+
+    /**
+     * order by 句の位置パラメータに渡す値を追加する。
+     *
+     * @param values 追加先
+     */
+    void bind(@NotNull List<Object> values) {
+        if (kind == Kind.DISTANCE) {
+            values.add(originX);
+            values.add(originY);
+            values.add(originZ);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ショップの検索条件。項目ごとに一つの {@link Predicate} を持ち、条件の無い項目は絞り込みに使わない。
+ * <p>
+ * DBで検索するときは {@link SearchStatement} にコンパイルする。
+ * 文の形はどの項目にどの種類の条件があるかだけで決まり、値は全て位置パラメータとして渡す。
+ */
+public final class SearchQuery {
+
+    private final Map<SearchField, Predicate> predicates = new EnumMap<>(SearchField.class);
+
+    @Nullable
+    public String getWorld() { return getValue(SearchField.WORLD); }
+    @NotNull
+    public SearchQuery world(@Nullable String world) { return equal(SearchField.WORLD, world); }
+
+    @Nullable
+    public Range<Integer> getX() { return getRange(SearchField.X); }
+    @NotNull
+    public SearchQuery x(@Nullable Range<Integer> x) { return between(SearchField.X, x); }
+
+    @Nullable
+    public Range<Integer> getY() { return getRange(SearchField.Y); }
+    @NotNull
+    public SearchQuery y(@Nullable Range<Integer> y) { return between(SearchField.Y, y); }
+
+    @Nullable
+    public Range<Integer> getZ() { return getRange(SearchField.Z); }
+    @NotNull
+    public SearchQuery z(@Nullable Range<Integer> z) { return between(SearchField.Z, z); }
+
+    /** チェストショップにおけるアイテム名。 */
+    @Nullable
+    public String getItem() { return getValue(SearchField.ITEM); }
+    @NotNull
+    public SearchQuery item(@Nullable String item) { return equal(SearchField.ITEM, item); }
+
+    @Nullable
+    public UUID getOwner() { return getValue(SearchField.OWNER); }
+    @NotNull
+    public SearchQuery owner(@Nullable UUID owner) { return equal(SearchField.OWNER, owner); }
+
+    @Nullable
+    public Range<BigDecimal> getBuyPrice() { return getRange(SearchField.BUY_PRICE); }
+    @NotNull
+    public SearchQuery buyPrice(@Nullable Range<BigDecimal> buyPrice) { return between(SearchField.BUY_PRICE, buyPrice); }
+
+    @Nullable
+    public Range<BigDecimal> getSellPrice() { return getRange(SearchField.SELL_PRICE); }
+    @NotNull
+    public SearchQuery sellPrice(@Nullable Range<BigDecimal> sellPrice) { return between(SearchField.SELL_PRICE, sellPrice); }
+
+    @Nullable
+    public Range<Integer> getStock() { return getRange(SearchField.STOCK); }
+    @NotNull
+    public SearchQuery stock(@Nullable Range<Integer> stock) { return between(SearchField.STOCK, stock); }
+
+    @Nullable
+    public Range<Integer> getQuantity() { return getRange(SearchField.QUANTITY); }
+    @NotNull
+    public SearchQuery quantity(@Nullable Range<Integer> quantity) { return between(SearchField.QUANTITY, quantity); }
+
+    /**
+     * 全ての条件を項目の順に取得する。
+     *
+     * @return 条件のコレクション
+     */
+    @NotNull
+    public Collection<Predicate> getPredicates() {
+        return Collections.unmodifiableCollection(predicates.values());
+    }
+
+    /**
+     * ショップが全ての条件に当てはまるかどうかを調べる。
+     *
+     * @param shop 調べるショップ
+     * @return 全ての条件に当てはまればtrue
+     */
+    public boolean test(@NotNull Shop shop) {
+        for (Predicate predicate : predicates.values()) {
+            if (!predicate.test(shop)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @NotNull
+    private SearchQuery equal(@NotNull SearchField field, @Nullable Object value) {
+        return set(field, value == null ? null : new Equal(field, value));
+    }
+
+    @NotNull
+    private SearchQuery between(@NotNull SearchField field, @Nullable Range<?> range) {
+        return set(field, range == null ? null : new Between(field, range));
+    }
+
+    @NotNull
+    private SearchQuery set(@NotNull SearchField field, @Nullable Predicate predicate) {
+        if (predicate == null) {
+            predicates.remove(field);
+        } else {
+            predicates.put(field, predicate);
+        }
+        return this;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T> T getValue(@NotNull SearchField field) {
+        Predicate predicate = predicates.get(field);
+        return predicate instanceof Equal ? (T) ((Equal) predicate).value : null;
+    }
+
+    @Nullable
+    @SuppressWarnings("unchecked")
+    private <T extends Comparable<? super T>> Range<T> getRange(@NotNull SearchField field) {
+        Predicate predicate = predicates.get(field);
+        return predicate instanceof Between ? (Range<T>) ((Between) predicate).range : null;
+    }
+
+    /**
+     * 一つの項目に対する条件。
+     */
+    public abstract static class Predicate {
+
+        private final SearchField field;
+
+        private Predicate(@NotNull SearchField field) {
+            this.field = field;
+        }
+
+        @NotNull
+        public SearchField getField() {
+            return field;
+        }
+
+        /**
+         * ショップがこの条件に当てはまるかどうかを調べる。
+         *
+         * @param shop 調べるショップ
+         * @return 当てはまればtrue
+         */
+        public abstract boolean test(@NotNull Shop shop);
+
+        /**
+         * 文の形を表す文字列を追加する。値には依存しない。
+         *
+         * @param shape 追加先
+         */
+        abstract void appendShape(@NotNull StringBuilder shape);
+
+        /**
+         * JPQLの条件を追加する。
+         *
+         * @param conditions  追加先
+         * @param alias       エンティティの別名
+         * @param firstIndex  最初の位置パラメータの番号
+         * @return 使った位置パラメータの数
+         */
+        abstract int appendJpql(@NotNull List<String> conditions, @NotNull String alias, int firstIndex);
+
+        /**
+         * 位置パラメータに渡す値を {@link #appendJpql(List, String, int)} と同じ順に追加する。
+         *
+         * @param values 追加先
+         */
+        abstract void bind(@NotNull List<Object> values);
+    }
+
+    /**
+     * 項目の値が等しい。
+     */
+    public static final class Equal extends Predicate {
+
+        private final Object value;
+
+        private Equal(@NotNull SearchField field, @NotNull Object value) {
+            super(field);
+            this.value = value;
+        }
+
+        @NotNull
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean test(@NotNull Shop shop) {
+            return value.equals(getField().get(shop));
+        }
+
+        @Override
+        void appendShape(@NotNull StringBuilder shape) {
+            shape.append(getField().name()).append('=');
+        }
+
+        @Override
+        int appendJpql(@NotNull List<String> conditions, @NotNull String alias, int firstIndex) {
+            conditions.add(alias + "." + getField().getProperty() + " = ?" + firstIndex);
+            return 1;
+        }
+
+        @Override
+        void bind(@NotNull List<Object> values) {
+            values.add(value);
+        }
+    }
+
+    /**
+     * 項目の値が範囲に含まれる。
+     */
+    public static final class Between extends Predicate {
+
+        private final Range<?> range;
+
+        private Between(@NotNull SearchField field, @NotNull Range<?> range) {
+            super(field);
+            this.range = range;
+        }
+
+        @NotNull
+        public Range<?> getRange() {
+            return range;
+        }
+
+        @Override
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public boolean test(@NotNull Shop shop) {
+            return ((Range) range).contains((Comparable) getField().get(shop));
+        }
+
+        @Override
+        void appendShape(@NotNull StringBuilder shape) {
+            shape.append(getField().name())
+                    .append(range.getMin() != null ? '[' : '(')
+                    .append(range.getMax() != null ? ']' : ')');
+        }
+
+        @Override
+        int appendJpql(@NotNull List<String> conditions, @NotNull String alias, int firstIndex) {
+            String path = alias + "." + getField().getProperty();
+            int index = firstIndex;
+            if (range.getMin() != null) {
+                conditions.add(path + " >= ?" + index++);
+            }
+            if (range.getMax() != null) {
+                conditions.add(path + " <= ?" + index++);
+            }
+            if (index == firstIndex) {
+                conditions.add(path + " is not null");
+            }
+            return index - firstIndex;
+        }
+
+        @Override
+        void bind(@NotNull List<Object> values) {
+            if (range.getMin() != null) {
+                values.add(range.getMin());
+            }
+            if (range.getMax() != null) {
+                values.add(range.getMax());
+            }
+        }
+    }
+
+    /**
+     * 両端を含む値の範囲。nullの端は制限しない。
+     *
+     * @param <T> 値の型
+     */
+    public static final class Range<T extends Comparable<? super T>> {
+
+        @Nullable
+        private final T min;
+        @Nullable
+        private final T max;
+
+        public Range(@Nullable T min, @Nullable T max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        @Nullable
+        public T getMin() { return min; }
+
+        @Nullable
+        public T getMax() { return max; }
+
+        public boolean contains(@Nullable T value) {
+            if (value == null) {
+                return false;
+            }
+            return (min == null || min.compareTo(value) <= 0) && (max == null || max.compareTo(value) >= 0);
+        }
+    }
+}
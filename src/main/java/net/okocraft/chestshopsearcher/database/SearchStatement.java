@@ -0,0 +1,132 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * {@link SearchQuery} をコンパイルしたJPQLの文。
+ * <p>
+ * 文の形はどの項目にどの種類の条件があるかだけで決まり、値は全て位置パラメータとして {@link #bind(SearchQuery, String)} で渡す。
+ * 値が違っても形が同じなら同じ文字列の文になるので、Hibernateのクエリプランのキャッシュも形の数しか使わない。
+ * コンパイルした文は形ごとにキャッシュする。形の数は項目の数で決まる有限の数なので、キャッシュは制限しない。
+ */
+final class SearchStatement {
+
+    private static final Map<String, SearchStatement> CACHE = new ConcurrentHashMap<>();
+
+    private final String where;
+    private final int nextIndex;
+    private final String countQuery;
+    private final String firstPageQuery;
+    private final String nextPageQuery;
+    private final Map<SearchOrder.Kind, String> topQueries = new ConcurrentHashMap<>();
+
+    private SearchStatement(@NotNull SearchQuery query) {
+        List<String> conditions = new ArrayList<>();
+        int index = 1;
+        for (SearchQuery.Predicate predicate : query.getPredicates()) {
+            index += predicate.appendJpql(conditions, "c", index);
+        }
+
+        where = String.join(" and ", conditions);
+        nextIndex = index;
+        countQuery = "select count(c) from Shop c" + (where.isEmpty() ? "" : " where " + where);
+        firstPageQuery = "select c from Shop c" + (where.isEmpty() ? "" : " where " + where) + " order by c.location";
+        nextPageQuery = "select c from Shop c where " + (where.isEmpty() ? "" : where + " and ")
+                + "c.location > ?" + index + " order by c.location";
+    }
+
+    /**
+     * 検索条件の形に合う文を取得する。初めての形の場合はコンパイルしてキャッシュする。
+     *
+     * @param query 検索条件
+     * @return コンパイルした文
+     */
+    @NotNull
+    static SearchStatement compile(@NotNull SearchQuery query) {
+        return CACHE.computeIfAbsent(getShape(query), shape -> new SearchStatement(query));
+    }
+
+    /**
+     * 位置パラメータに渡す値を作る。
+     *
+     * @param query 検索条件
+     * @param after 前のページの最後の location。無い場合はnull
+     * @return 位置パラメータの順に並べた値
+     */
+    @NotNull
+    static Object[] bind(@NotNull SearchQuery query, @Nullable String after) {
+        List<Object> values = new ArrayList<>();
+        for (SearchQuery.Predicate predicate : query.getPredicates()) {
+            predicate.bind(values);
+        }
+        if (after != null) {
+            values.add(after);
+        }
+        return values.toArray();
+    }
+
+    /**
+     * 上位のショップの location を並び順に読む文のパラメータを作る。
+     *
+     * @param query 検索条件
+     * @param order 並び順
+     * @return 位置パラメータの順に並べた値
+     */
+    @NotNull
+    static Object[] bind(@NotNull SearchQuery query, @NotNull SearchOrder order) {
+        List<Object> values = new ArrayList<>();
+        for (SearchQuery.Predicate predicate : query.getPredicates()) {
+            predicate.bind(values);
+        }
+        order.bind(values);
+        return values.toArray();
+    }
+
+    @NotNull
+    private static String getShape(@NotNull SearchQuery query) {
+        StringBuilder shape = new StringBuilder();
+        for (SearchQuery.Predicate predicate : query.getPredicates()) {
+            predicate.appendShape(shape);
+            shape.append(';');
+        }
+        return shape.toString();
+    }
+
+    /**
+     * 上位のショップの location を並び順に読む文を取得する。並び順の種類ごとに一度だけ作る。
+     *
+     * @param order 並び順
+     * @return location を読む文
+     */
+    @NotNull
+    String getTopQuery(@NotNull SearchOrder order) {
+        return topQueries.computeIfAbsent(order.getKind(), kind -> {
+            String condition = order.getJpqlCondition("c");
+            String filter = where.isEmpty() ? condition : condition == null ? where : where + " and " + condition;
+            return "select c.location from Shop c" + (filter == null || filter.isEmpty() ? "" : " where " + filter)
+                    + " order by " + SearchOrder.getJpqlOrderBy(kind, "c", nextIndex);
+        });
+    }
+
+    @NotNull
+    String getCountQuery() {
+        return countQuery;
+    }
+
+    /**
+     * ページを読む文を取得する。
+     *
+     * @param hasAfter 前のページの最後の location を渡すかどうか
+     * @return ページを読む文
+     */
+    @NotNull
+    String getPageQuery(boolean hasAfter) {
+        return hasAfter ? nextPageQuery : firstPageQuery;
+    }
+}
@@ -0,0 +1,36 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 検索で使う列にインデックスを張る。
+ * <p>
+ * MySQLでは item (varchar(255)) の全体にインデックスを張るとutf8mb4で767バイトの制限を超えることがあるので、
+ * 先頭191文字のプレフィックスインデックスにする。
+ */
+final class SecondaryIndexesMigration implements Migration {
+
+    @Override
+    public int getVersion() {
+        return 3;
+    }
+
+    @NotNull
+    @Override
+    public String getDescription() {
+        return "add indexes on item, owner, (item, buy_price), (item, sell_price) and stock";
+    }
+
+    @Override
+    public void migrate(@NotNull Connection connection, boolean mysql) throws SQLException {
+        String item = mysql ? "item(191)" : "item";
+        SchemaMigrator.createIndex(connection, "shops", "idx_shops_item", item);
+        SchemaMigrator.createIndex(connection, "shops", "idx_shops_owner", "owner");
+        SchemaMigrator.createIndex(connection, "shops", "idx_shops_item_buy_price", item + ", buy_price");
+        SchemaMigrator.createIndex(connection, "shops", "idx_shops_item_sell_price", item + ", sell_price");
+        SchemaMigrator.createIndex(connection, "shops", "idx_shops_stock", "stock");
+    }
+}
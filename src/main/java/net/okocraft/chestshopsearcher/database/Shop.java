@@ -1,26 +1,46 @@
 package net.okocraft.chestshopsearcher.database;
 
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.UUID;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 
-@Table(name = "shops")
+import org.hibernate.annotations.Type;
+
+@Table(name = "shops", indexes = {
+        @Index(name = "idx_shops_coordinates", columnList = "world, x, z, y"),
+        @Index(name = "idx_shops_item", columnList = "item"),
+        @Index(name = "idx_shops_owner", columnList = "owner"),
+        @Index(name = "idx_shops_item_buy_price", columnList = "item, buy_price"),
+        @Index(name = "idx_shops_item_sell_price", columnList = "item, sell_price"),
+        @Index(name = "idx_shops_stock", columnList = "stock")
+})
 @Entity
 public class Shop implements Serializable {
 
     private static final long serialVersionUID = -8014797515813856571L;
 
+    /** 価格が設定されていないことを表す値 */
+    public static final BigDecimal NO_PRICE = BigDecimal.ONE.negate();
+
     public Shop() {
     }
 
-    public Shop(String location, String ownerUniqueId, Integer stock, Integer quantity, String item, String buyPrice, String sellPrice) {
-        this.location = location;
+    public Shop(String world, int x, int y, int z, UUID ownerUniqueId, Integer stock, Integer quantity, String item, BigDecimal buyPrice, BigDecimal sellPrice) {
+        this.location = ShopManager.toDBKey(world, x, y, z);
+        this.world = world;
+        this.x = x;
+        this.y = y;
+        this.z = z;
         this.ownerUniqueId = ownerUniqueId;
         this.stock = stock;
         this.quantity = quantity;
@@ -36,12 +56,60 @@ public class Shop implements Serializable {
     public String getLocation() { return location; }
     public void setLocation(String location) { this.location = location; }
 
-    /** ショップの持ち主のUUID。00000000-0000-0000-0000-000000000000という形式の文字列。 */
-    @Column(name = "owner", nullable = false, length = 36)
+    /** 看板のあるワールドの名前。座標で検索できるようにlocationとは別に保存する。 */
+    @Column(nullable = false, length = 100)
     @NotBlank
-    private String ownerUniqueId;
-    public String getOwnerUniqueId() { return ownerUniqueId; }
-    public void setOwnerUniqueId(String ownerUniqueId) { this.ownerUniqueId = ownerUniqueId; }
+    private String world;
+    public String getWorld() { return world; }
+    public void setWorld(String world) { this.world = world; this.worldId = -1; }
+
+    /** {@link WorldDictionary} でのワールドの番号。最初に使うときに引く。 */
+    @Transient
+    private transient int worldId = -1;
+    public int getWorldId() {
+        if (worldId < 0) {
+            worldId = WorldDictionary.getInstance().getId(world);
+        }
+        return worldId;
+    }
+
+    /**
+     * 座標を {@link LocationKey} に詰めたキーを取得する。
+     *
+     * @return 詰めたキー
+     */
+    public long getPackedLocation() {
+        return LocationKey.pack(x, y, z);
+    }
+
+    /** 看板のX座標。 */
+    @Column(nullable = false)
+    @NotNull
+    private Integer x;
+    public Integer getX() { return x; }
+    public void setX(Integer x) { this.x = x; }
+
+    /** 看板のY座標。 */
+    @Column(nullable = false)
+    @NotNull
+    private Integer y;
+    public Integer getY() { return y; }
+    public void setY(Integer y) { this.y = y; }
+
+    /** 看板のZ座標。 */
+    @Column(nullable = false)
+    @NotNull
+    private Integer z;
+    public Integer getZ() { return z; }
+    public void setZ(Integer z) { this.z = z; }
+
+    /** ショップの持ち主のUUID。DBには16バイトのバイナリとして保存する。 */
+    @Column(name = "owner", nullable = false, columnDefinition = "binary(16)")
+    @Type(type = "uuid-binary")
+    @NotNull
+    private UUID ownerUniqueId;
+    public UUID getOwnerUniqueId() { return ownerUniqueId; }
+    public void setOwnerUniqueId(UUID ownerUniqueId) { this.ownerUniqueId = ownerUniqueId; }
 
     /** 現在のショップの在庫数。取引するたびに更新する。 */
     @Column(nullable = false)
@@ -66,17 +134,45 @@ public class Shop implements Serializable {
     public void setItem(String item) { this.item = item; }
 
     /** アイテムの販売価格。買取のみの場合は-1を設定する。 */
-    @Column(name = "buy_price", nullable = false)
-    @NotBlank
-    private String buyPrice;
-    public String getBuyPrice() { return buyPrice; }
-    public void setBuyPrice(String buyPrice) { this.buyPrice = buyPrice; }
+    @Column(name = "buy_price", nullable = false, precision = 19, scale = 4)
+    @NotNull
+    private BigDecimal buyPrice;
+    public BigDecimal getBuyPrice() { return buyPrice; }
+    public void setBuyPrice(BigDecimal buyPrice) { this.buyPrice = buyPrice; }
     
     /** アイテムの買取価格。販売のみの場合は-1を設定する。 */
-    @Column(name = "sell_price", nullable = false)
-    @NotBlank
-    private String sellPrice;
-    public String getSellPrice() { return sellPrice; }
-    public void setSellPrice(String sellPrice) { this.sellPrice = sellPrice; }
+    @Column(name = "sell_price", nullable = false, precision = 19, scale = 4)
+    @NotNull
+    private BigDecimal sellPrice;
+    public BigDecimal getSellPrice() { return sellPrice; }
+    public void setSellPrice(BigDecimal sellPrice) { this.sellPrice = sellPrice; }
+
+    /**
+     * 販売しているかどうかを取得する。
+     *
+     * @return 販売価格が設定されていればtrue
+     */
+    public boolean isBuying() {
+        return buyPrice.compareTo(NO_PRICE) != 0;
+    }
+
+    /**
+     * 買取しているかどうかを取得する。
+     *
+     * @return 買取価格が設定されていればtrue
+     */
+    public boolean isSelling() {
+        return sellPrice.compareTo(NO_PRICE) != 0;
+    }
+
+    /**
+     * 表示用に価格を文字列にする。DBの桁数で付いた末尾の0は取り除く。
+     *
+     * @param price 価格
+     * @return 価格の文字列
+     */
+    public static String formatPrice(BigDecimal price) {
+        return price.stripTrailingZeros().toPlainString();
+    }
 
 }
\ No newline at end of file
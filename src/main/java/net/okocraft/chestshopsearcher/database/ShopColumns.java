@@ -0,0 +1,239 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.UUID;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ショップを列ごとのプリミティブの配列で持つストア。
+ * <p>
+ * 一つのショップは全ての配列の同じ位置 (行) に入る。座標は {@link LocationKey} に詰め、ワールドは {@link WorldDictionary} の番号、
+ * アイテムと持ち主は辞書の番号で持つ。価格はDBと同じ小数点以下4桁までを10000倍した long で持つ。
+ * 行は末尾に追加するだけで、削除は墓標を立てるだけにする。墓標の行は {@link #compact()} で詰める。
+ * スレッドセーフではないので、{@link ShopIndex} のロックの中で使う。
+ */
+final class ShopColumns {
+
+    /** 価格の小数点以下の桁数。{@link Shop} の列の scale と同じ。 */
+    static final int PRICE_SCALE = 4;
+
+    private static final BigDecimal MAX_PRICE = BigDecimal.valueOf(Long.MAX_VALUE).movePointLeft(PRICE_SCALE);
+    private static final BigDecimal MIN_PRICE = BigDecimal.valueOf(Long.MIN_VALUE).movePointLeft(PRICE_SCALE);
+
+    private final ValueDictionary<String> items = new ValueDictionary<>();
+    private final ValueDictionary<UUID> owners = new ValueDictionary<>();
+
+    private long[] position = new long[0];
+    private int[] world = new int[0];
+    private int[] item = new int[0];
+    private int[] owner = new int[0];
+    private long[] buyPrice = new long[0];
+    private long[] sellPrice = new long[0];
+    private int[] stock = new int[0];
+    private int[] quantity = new int[0];
+    private final BitSet deleted = new BitSet();
+
+    private int size;
+    private int deletedCount;
+
+    /**
+     * ショップをこのストアに入れられるかどうかを調べる。
+     *
+     * @param shop 調べるショップ
+     * @return 入れられるならtrue
+     */
+    static boolean accepts(@NotNull Shop shop) {
+        return shop.getWorld() != null && shop.getX() != null && shop.getY() != null && shop.getZ() != null
+                && LocationKey.isPackable(shop.getX(), shop.getY(), shop.getZ())
+                && shop.getItem() != null && shop.getOwnerUniqueId() != null
+                && shop.getStock() != null && shop.getQuantity() != null
+                && isRepresentable(shop.getBuyPrice()) && isRepresentable(shop.getSellPrice());
+    }
+
+    private static boolean isRepresentable(BigDecimal price) {
+        return price != null && price.compareTo(MAX_PRICE) <= 0 && price.compareTo(MIN_PRICE) >= 0;
+    }
+
+    /**
+     * 価格を10000倍した long にする。小数点以下5桁目は四捨五入する。
+     *
+     * @param price 価格
+     * @return 10000倍した価格
+     */
+    static long toScaled(@NotNull BigDecimal price) {
+        return price.setScale(PRICE_SCALE, RoundingMode.HALF_UP).unscaledValue().longValue();
+    }
+
+    @NotNull
+    static BigDecimal fromScaled(long price) {
+        return BigDecimal.valueOf(price, PRICE_SCALE);
+    }
+
+    /**
+     * ショップを末尾の行に追加する。{@link #accepts(Shop)} を満たしている必要がある。
+     *
+     * @param shop 追加するショップ
+     * @return 追加した行
+     */
+    int append(@NotNull Shop shop) {
+        if (size == position.length) {
+            grow();
+        }
+        int row = size++;
+        position[row] = shop.getPackedLocation();
+        world[row] = shop.getWorldId();
+        item[row] = items.getOrAdd(shop.getItem());
+        owner[row] = owners.getOrAdd(shop.getOwnerUniqueId());
+        buyPrice[row] = toScaled(shop.getBuyPrice());
+        sellPrice[row] = toScaled(shop.getSellPrice());
+        stock[row] = shop.getStock();
+        quantity[row] = shop.getQuantity();
+        return row;
+    }
+
+    /**
+     * 行に墓標を立てる。
+     *
+     * @param row 行
+     */
+    void delete(int row) {
+        if (!deleted.get(row)) {
+            deleted.set(row);
+            deletedCount++;
+        }
+    }
+
+    boolean isDeleted(int row) {
+        return deleted.get(row);
+    }
+
+    /**
+     * 墓標の行を詰める。詰めた後は行の番号が変わるので、行を使うインデックスは作り直す必要がある。
+     */
+    void compact() {
+        int to = 0;
+        for (int from = 0; from < size; from++) {
+            if (deleted.get(from)) {
+                continue;
+            }
+            if (from != to) {
+                position[to] = position[from];
+                world[to] = world[from];
+                item[to] = item[from];
+                owner[to] = owner[from];
+                buyPrice[to] = buyPrice[from];
+                sellPrice[to] = sellPrice[from];
+                stock[to] = stock[from];
+                quantity[to] = quantity[from];
+            }
+            to++;
+        }
+        size = to;
+        deleted.clear();
+        deletedCount = 0;
+    }
+
+    void clear() {
+        size = 0;
+        deletedCount = 0;
+        deleted.clear();
+        items.clear();
+        owners.clear();
+    }
+
+    /**
+     * 墓標も含めた行の数を取得する。
+     *
+     * @return 行の数
+     */
+    int size() {
+        return size;
+    }
+
+    int getDeletedCount() {
+        return deletedCount;
+    }
+
+    int getLiveCount() {
+        return size - deletedCount;
+    }
+
+    /**
+     * 行をショップのエンティティにする。表示やDBに渡すときだけ使う。
+     *
+     * @param row 行
+     * @return ショップ
+     */
+    @NotNull
+    Shop toShop(int row) {
+        long key = position[row];
+        return new Shop(
+                WorldDictionary.getInstance().getName(world[row]),
+                LocationKey.getX(key), LocationKey.getY(key), LocationKey.getZ(key),
+                owners.getValue(owner[row]),
+                stock[row],
+                quantity[row],
+                items.getValue(item[row]),
+                fromScaled(buyPrice[row]),
+                fromScaled(sellPrice[row])
+        );
+    }
+
+    long getPosition(int row) {
+        return position[row];
+    }
+
+    int getWorld(int row) {
+        return world[row];
+    }
+
+    int getItem(int row) {
+        return item[row];
+    }
+
+    int getOwner(int row) {
+        return owner[row];
+    }
+
+    long getBuyPrice(int row) {
+        return buyPrice[row];
+    }
+
+    long getSellPrice(int row) {
+        return sellPrice[row];
+    }
+
+    int getStock(int row) {
+        return stock[row];
+    }
+
+    int getQuantity(int row) {
+        return quantity[row];
+    }
+
+    @NotNull
+    ValueDictionary<String> getItems() {
+        return items;
+    }
+
+    @NotNull
+    ValueDictionary<UUID> getOwners() {
+        return owners;
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, position.length + (position.length >> 1));
+        position = Arrays.copyOf(position, capacity);
+        world = Arrays.copyOf(world, capacity);
+        item = Arrays.copyOf(item, capacity);
+        owner = Arrays.copyOf(owner, capacity);
+        buyPrice = Arrays.copyOf(buyPrice, capacity);
+        sellPrice = Arrays.copyOf(sellPrice, capacity);
+        stock = Arrays.copyOf(stock, capacity);
+        quantity = Arrays.copyOf(quantity, capacity);
+    }
+}
@@ -0,0 +1,684 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+/**
+ * 全てのショップをメモリに持ち、検索に使うインデックス。
+ * <p>
+ * 起動時に一度だけDBから読み込み、以降は {@link net.okocraft.chestshopsearcher.listener.ChestShopListener} のイベントで更新する。
+ * ショップは {@link ShopColumns} の列ごとのプリミティブの配列に持ち、エンティティは結果を返すときにだけ作る。
+ * ワールド、アイテム、持ち主、価格、在庫、取引数の条件は {@link BitmapIndex} のビットマップの AND と OR で候補の行に絞り、
+ * 座標の範囲はワールドごとのチャンクの格子で引ける。候補の行は列の配列をそのまま読んで確かめる。
+ * ショップの更新は古い行に墓標を立てて新しい行を追加し、墓標が生きている行より多くなったら詰めてインデックスを作り直す。
+ * <p>
+ * ページを読むときは条件に当てはまる行のうち場所が小さい順に必要な件数だけを選び、全体を並べ替えない。
+ * 場所の順はワールド名、x、y、zの順で、前のページの最後の location を同じ順で比べる。
+ */
+public final class ShopIndex implements ShopSearcher {
+
+    private static final ShopIndex INSTANCE = new ShopIndex();
+
+    /** 座標の範囲から候補を集めるときに調べるチャンクの数の上限。これより広い範囲では格子を使わない。 */
+    private static final int MAX_BOX_CELLS = 4096;
+
+    /** 墓標がこの数より少ないうちは行を詰めない。 */
+    private static final int MIN_DELETED_TO_COMPACT = 1024;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ShopColumns columns = new ShopColumns();
+    /** ワールドの番号ごとに、{@link LocationKey} に詰めた座標で生きている行を引く。 */
+    private final Map<Integer, Map<Long, Integer>> rowByPosition = new HashMap<>();
+    private final BitmapIndex bitmaps = new BitmapIndex();
+    private final SpatialIndex byChunk = new SpatialIndex();
+
+    private ShopIndex() {
+    }
+
+    @NotNull
+    public static ShopIndex getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * DBから全てのショップを読み込み、インデックスを作り直す。
+     */
+    public void load() {
+        List<Shop> shops = ShopManager.getInstance().getAll();
+        lock.writeLock().lock();
+        try {
+            clear();
+            if (shops != null) {
+                for (Shop shop : shops) {
+                    if (ShopColumns.accepts(shop)) {
+                        deleteAt(shop.getWorldId(), shop.getPackedLocation());
+                        index(columns.append(shop));
+                    }
+                }
+            }
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * ショップを追加する。同じ場所のショップが既にあれば置き換える。
+     *
+     * @param shop 追加するショップ
+     * @return 置き換えたショップ。無ければnull
+     */
+    @Nullable
+    public Shop put(@NotNull Shop shop) {
+        if (!ShopColumns.accepts(shop)) {
+            return null;
+        }
+
+        lock.writeLock().lock();
+        try {
+            int previous = deleteAt(shop.getWorldId(), shop.getPackedLocation());
+            Shop replaced = previous >= 0 ? columns.toShop(previous) : null;
+            index(columns.append(shop));
+            compactIfNeeded();
+            return replaced;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * ショップを削除する。
+     *
+     * @param location 削除するショップの場所
+     * @return 削除したショップ。無ければnull
+     */
+    @Nullable
+    public Shop remove(@NotNull String location) {
+        long position;
+        try {
+            position = LocationKey.parse(location);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return remove(LocationKey.parseWorld(location), LocationKey.getX(position), LocationKey.getY(position), LocationKey.getZ(position));
+    }
+
+    /**
+     * 座標を指定してショップを削除する。文字列のキーは作らない。
+     *
+     * @param world ワールド名
+     * @param x     x座標
+     * @param y     y座標
+     * @param z     z座標
+     * @return 削除したショップ。無ければnull
+     */
+    @Nullable
+    public Shop remove(@NotNull String world, int x, int y, int z) {
+        int worldId = WorldDictionary.getInstance().getIdIfPresent(world);
+        if (worldId < 0 || !LocationKey.isPackable(x, y, z)) {
+            return null;
+        }
+        lock.writeLock().lock();
+        try {
+            int row = deleteAt(worldId, LocationKey.pack(x, y, z));
+            Shop removed = row >= 0 ? columns.toShop(row) : null;
+            compactIfNeeded();
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 全てのショップを取得する。
+     *
+     * @return 全てのショップのリスト。変更しても良い
+     */
+    @NotNull
+    public List<Shop> getAll() {
+        lock.readLock().lock();
+        try {
+            List<Shop> result = new ArrayList<>(columns.getLiveCount());
+            for (int row = 0; row < columns.size(); row++) {
+                if (!columns.isDeleted(row)) {
+                    result.add(columns.toShop(row));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 持ち主ごとのショップの数を取得する。エンティティは作らない。
+     *
+     * @return 持ち主のUUIDとショップの数のマップ。変更しても良い
+     */
+    @NotNull
+    public Map<UUID, Integer> getOwnerCounts() {
+        lock.readLock().lock();
+        try {
+            return countBy(columns::getOwner, columns.getOwners()::getValue);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * アイテムごとのショップの数を取得する。エンティティは作らない。
+     *
+     * @return チェストショップにおけるアイテム名とショップの数のマップ。変更しても良い
+     */
+    @NotNull
+    public Map<String, Integer> getItemCounts() {
+        lock.readLock().lock();
+        try {
+            return countBy(columns::getItem, columns.getItems()::getValue);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * ワールドごとのショップの数を取得する。エンティティは作らない。
+     *
+     * @return ワールド名とショップの数のマップ。変更しても良い
+     */
+    @NotNull
+    public Map<String, Integer> getWorldCounts() {
+        lock.readLock().lock();
+        try {
+            return countBy(columns::getWorld, WorldDictionary.getInstance()::getName);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 生きている行を辞書の番号の列で数える。読み込みロックを取得した状態で呼ぶ。
+     */
+    @NotNull
+    private <T> Map<T, Integer> countBy(@NotNull IntUnaryOperator column, @NotNull IntFunction<T> toValue) {
+        int[] counts = new int[16];
+        for (int row = 0; row < columns.size(); row++) {
+            if (!columns.isDeleted(row)) {
+                int id = column.applyAsInt(row);
+                if (id >= counts.length) {
+                    counts = Arrays.copyOf(counts, Math.max(id + 1, counts.length * 2));
+                }
+                counts[id]++;
+            }
+        }
+
+        Map<T, Integer> result = new HashMap<>();
+        for (int id = 0; id < counts.length; id++) {
+            if (counts[id] > 0) {
+                result.put(toValue.apply(id), counts[id]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * ショップの数を取得する。
+     *
+     * @return ショップの数
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return columns.getLiveCount();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long count(@NotNull SearchQuery query) {
+        lock.readLock().lock();
+        try {
+            RowFilter filter = new RowFilter(columns, query);
+            if (filter.isEmpty()) {
+                return 0;
+            }
+            if (!filter.hasRanges()) {
+                // 等しい条件だけならビットマップの AND がそのまま答えになる。
+                RoaringBitmap candidates = bitmaps.select(filter);
+                return candidates == null ? columns.getLiveCount() : candidates.getCardinality();
+            }
+
+            long[] count = new long[1];
+            forEachCandidate(filter, query, row -> {
+                if (filter.test(row)) {
+                    count[0]++;
+                }
+            });
+            return count[0];
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<Shop> page(@NotNull SearchQuery query, @Nullable String after, int limit) {
+        if (limit <= 0) {
+            return new ArrayList<>();
+        }
+
+        lock.readLock().lock();
+        try {
+            RowFilter filter = new RowFilter(columns, query);
+            TopRows smallest = new TopRows(limit, this::compareLocation);
+            if (after == null) {
+                forEachCandidate(filter, query, row -> {
+                    if (filter.test(row)) {
+                        smallest.offer(row);
+                    }
+                });
+            } else {
+                String afterWorld = LocationKey.parseWorld(after);
+                long afterPosition = LocationKey.parse(after);
+                forEachCandidate(filter, query, row -> {
+                    if (compareLocation(row, afterWorld, afterPosition) > 0 && filter.test(row)) {
+                        smallest.offer(row);
+                    }
+                });
+            }
+
+            int[] rows = smallest.toSortedArray();
+            List<Shop> result = new ArrayList<>(rows.length);
+            for (int row : rows) {
+                result.add(columns.toShop(row));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<String> top(@NotNull SearchQuery query, @NotNull SearchOrder order, int limit) {
+        List<String> result = new ArrayList<>();
+        if (limit <= 0) {
+            return result;
+        }
+
+        lock.readLock().lock();
+        try {
+            RowFilter filter = new RowFilter(columns, query);
+            TopRows best = new TopRows(limit, getComparator(order));
+            boolean unitPrice = order.getKind() == SearchOrder.Kind.UNIT_PRICE;
+            IntConsumer offer = row -> {
+                // 1個あたりの価格は買い取りのできるショップにだけある。
+                if (unitPrice && (columns.getBuyPrice(row) < 0 || columns.getQuantity(row) <= 0)) {
+                    return;
+                }
+                if (filter.test(row)) {
+                    best.offer(row);
+                }
+            };
+
+            if (order.getKind() == SearchOrder.Kind.DISTANCE && filter.world >= 0 && !filter.isEmpty()) {
+                offerNearest(filter.world, order, best, offer);
+            } else {
+                forEachCandidate(filter, query, offer);
+            }
+
+            for (int row : best.toSortedArray()) {
+                result.add(LocationKey.toString(WorldDictionary.getInstance().getName(columns.getWorld(row)), columns.getPosition(row)));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @NotNull
+    @Override
+    public List<Shop> find(@NotNull List<String> locations) {
+        lock.readLock().lock();
+        try {
+            List<Shop> result = new ArrayList<>(locations.size());
+            for (String location : locations) {
+                long position;
+                try {
+                    position = LocationKey.parse(location);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                Map<Long, Integer> rows = rowByPosition.get(WorldDictionary.getInstance().getIdIfPresent(LocationKey.parseWorld(location)));
+                Integer row = rows == null ? null : rows.get(position);
+                if (row != null) {
+                    result.add(columns.toShop(row));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 基準の座標のチャンクから外側へ1周ずつ行を渡す。limit 件が集まっていて、
+     * 次の周のどのブロックも集まった中で最も遠い行より遠い場合はそこで止める。
+     * 1周で調べるチャンクの数が残りの行のあるチャンクの数より多くなったら、周を広げるよりも
+     * ワールドの全ての行を見た方が早いので、集めたものを捨ててワールド全体から選び直す。
+     */
+    private void offerNearest(int world, @NotNull SearchOrder order, @NotNull TopRows best, @NotNull IntConsumer offer) {
+        int x = order.getOriginX();
+        int z = order.getOriginZ();
+        int remainingCells = byChunk.getCellCount(world);
+        for (int ring = 0; remainingCells > 0; ring++) {
+            if (8L * ring > remainingCells) {
+                best.clear();
+                byChunk.visitAll(world, offer);
+                return;
+            }
+            remainingCells -= byChunk.visitRing(world, x, z, ring, offer);
+
+            if (best.isFull()) {
+                long nextRingDistance = (long) ring * 16 + 1;
+                if (getSquaredDistance(best.peek(), order) < nextRingDistance * nextRingDistance) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 候補の行を渡す。読み込みロックを取得した状態で呼ぶ。
+     * 候補には条件に当てはまらない行や墓標の行も含まれうるので、受け取った側で {@link RowFilter#test(int)} を使う。
+     * <p>
+     * 条件のビットマップと座標の範囲に重なるチャンクの行を AND し、使える条件が無ければ全ての行を渡す。
+     *
+     * @param filter   コンパイルした検索条件
+     * @param query    検索条件
+     * @param consumer 行を受け取る処理
+     */
+    private void forEachCandidate(@NotNull RowFilter filter, @NotNull SearchQuery query, @NotNull IntConsumer consumer) {
+        if (filter.isEmpty()) {
+            return;
+        }
+
+        RoaringBitmap candidates = bitmaps.select(filter);
+        if (candidates == null || !candidates.isEmpty()) {
+            RowList nearby = getNearby(filter, query);
+            if (nearby != null) {
+                RoaringBitmap box = new RoaringBitmap();
+                for (int i = 0, size = nearby.size(); i < size; i++) {
+                    box.add(nearby.get(i));
+                }
+                candidates = candidates == null ? box : RoaringBitmap.and(candidates, box);
+            }
+        }
+
+        if (candidates == null) {
+            for (int row = 0, size = columns.size(); row < size; row++) {
+                consumer.accept(row);
+            }
+            return;
+        }
+        PeekableIntIterator rows = candidates.getIntIterator();
+        while (rows.hasNext()) {
+            consumer.accept(rows.next());
+        }
+    }
+
+    /**
+     * ワールドとx, zの両端が指定されていれば、その範囲に重なるチャンクの行を取得する。
+     *
+     * @param filter コンパイルした検索条件
+     * @param query  検索条件
+     * @return 範囲の近くの行。使えない場合はnull
+     */
+    @Nullable
+    private RowList getNearby(@NotNull RowFilter filter, @NotNull SearchQuery query) {
+        SearchQuery.Range<Integer> x = query.getX();
+        SearchQuery.Range<Integer> z = query.getZ();
+        if (filter.world < 0 || x == null || z == null
+                || x.getMin() == null || x.getMax() == null || z.getMin() == null || z.getMax() == null) {
+            return null;
+        }
+        if (x.getMin() > x.getMax() || z.getMin() > z.getMax()) {
+            return new RowList();
+        }
+        return byChunk.getInBox(filter.world, x.getMin(), x.getMax(), z.getMin(), z.getMax(), MAX_BOX_CELLS);
+    }
+
+    /**
+     * 並び順の比較を作る。値が同じ行は場所の順に並べる。
+     *
+     * @param order 並び順
+     * @return 行の比較
+     */
+    @NotNull
+    private RowComparator getComparator(@NotNull SearchOrder order) {
+        RowComparator byValue;
+        switch (order.getKind()) {
+            case UNIT_PRICE:
+                // 販売価格 / 取引数 を割り算せずに、たすき掛けの積で比べる。
+                byValue = (a, b) -> compareProducts(columns.getBuyPrice(a), columns.getQuantity(b),
+                        columns.getBuyPrice(b), columns.getQuantity(a));
+                break;
+            case SELL_PRICE:
+                byValue = (a, b) -> Long.compare(columns.getSellPrice(b), columns.getSellPrice(a));
+                break;
+            case STOCK:
+                byValue = (a, b) -> Integer.compare(columns.getStock(b), columns.getStock(a));
+                break;
+            case DISTANCE:
+                byValue = (a, b) -> Long.compare(getSquaredDistance(a, order), getSquaredDistance(b, order));
+                break;
+            default:
+                return this::compareLocation;
+        }
+        return (a, b) -> {
+            int result = byValue.compare(a, b);
+            return result != 0 ? result : compareLocation(a, b);
+        };
+    }
+
+    /**
+     * 0以上の二つの積 {@code a * b} と {@code c * d} を、あふれないように128ビットで比べる。
+     */
+    private static int compareProducts(long a, long b, long c, long d) {
+        int high = Long.compare(Math.multiplyHigh(a, b), Math.multiplyHigh(c, d));
+        return high != 0 ? high : Long.compareUnsigned(a * b, c * d);
+    }
+
+    private long getSquaredDistance(int row, @NotNull SearchOrder order) {
+        long position = columns.getPosition(row);
+        long dx = (long) LocationKey.getX(position) - order.getOriginX();
+        long dy = (long) LocationKey.getY(position) - order.getOriginY();
+        long dz = (long) LocationKey.getZ(position) - order.getOriginZ();
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private int compareLocation(int a, int b) {
+        int worldA = columns.getWorld(a);
+        int worldB = columns.getWorld(b);
+        if (worldA != worldB) {
+            WorldDictionary worlds = WorldDictionary.getInstance();
+            return worlds.getName(worldA).compareTo(worlds.getName(worldB));
+        }
+        return comparePosition(columns.getPosition(a), columns.getPosition(b));
+    }
+
+    private int compareLocation(int row, @NotNull String world, long position) {
+        int result = WorldDictionary.getInstance().getName(columns.getWorld(row)).compareTo(world);
+        return result != 0 ? result : comparePosition(columns.getPosition(row), position);
+    }
+
+    private static int comparePosition(long a, long b) {
+        int result = Integer.compare(LocationKey.getX(a), LocationKey.getX(b));
+        if (result != 0) {
+            return result;
+        }
+        result = Integer.compare(LocationKey.getY(a), LocationKey.getY(b));
+        return result != 0 ? result : Integer.compare(LocationKey.getZ(a), LocationKey.getZ(b));
+    }
+
+    private void index(int row) {
+        int world = columns.getWorld(row);
+        long position = columns.getPosition(row);
+        rowByPosition.computeIfAbsent(world, k -> new HashMap<>()).put(position, row);
+        bitmaps.add(columns, row);
+        byChunk.add(world, position, row);
+    }
+
+    /**
+     * 場所にある行に墓標を立てる。書き込みロックを取得した状態で呼ぶ。
+     *
+     * @return 墓標を立てた行。無ければ-1
+     */
+    private int deleteAt(int world, long position) {
+        Map<Long, Integer> rows = rowByPosition.get(world);
+        Integer row = rows == null ? null : rows.remove(position);
+        if (row == null) {
+            return -1;
+        }
+        bitmaps.remove(columns, row);
+        columns.delete(row);
+        return row;
+    }
+
+    /**
+     * 墓標が十分に多ければ行を詰め、行を使うインデックスを作り直す。書き込みロックを取得した状態で呼ぶ。
+     */
+    private void compactIfNeeded() {
+        int deleted = columns.getDeletedCount();
+        if (deleted < MIN_DELETED_TO_COMPACT || deleted <= columns.getLiveCount()) {
+            return;
+        }
+
+        columns.compact();
+        rowByPosition.clear();
+        bitmaps.clear();
+        byChunk.clear();
+        for (int row = 0; row < columns.size(); row++) {
+            index(row);
+        }
+    }
+
+    private void clear() {
+        columns.clear();
+        rowByPosition.clear();
+        bitmaps.clear();
+        byChunk.clear();
+    }
+
+    @FunctionalInterface
+    private interface RowComparator {
+        int compare(int a, int b);
+    }
+
+    /**
+     * 並び順で前から最大 limit 件の行だけを残す int のヒープ。根には残した中で最も後ろの行が来る。
+     */
+    private static final class TopRows {
+
+        private final int limit;
+        private final RowComparator comparator;
+        private int[] heap;
+        private int size;
+
+        TopRows(int limit, @NotNull RowComparator comparator) {
+            this.limit = limit;
+            this.comparator = comparator;
+            this.heap = new int[Math.min(limit, 64)];
+        }
+
+        boolean isFull() {
+            return size >= limit;
+        }
+
+        int peek() {
+            return heap[0];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        void offer(int row) {
+            if (size < limit) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min(limit, heap.length * 2L));
+                }
+                siftUp(size++, row);
+            } else if (comparator.compare(row, heap[0]) < 0) {
+                siftDown(heap, size, row);
+            }
+        }
+
+        /**
+         * 残した行を並び順に取り出す。ヒープは壊れる。
+         *
+         * @return 並び順に並べた行
+         */
+        @NotNull
+        int[] toSortedArray() {
+            int[] result = new int[size];
+            for (int i = size - 1; i >= 0; i--) {
+                result[i] = heap[0];
+                siftDown(heap, i, heap[i]);
+            }
+            size = 0;
+            return result;
+        }
+
+        private void siftUp(int index, int row) {
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (comparator.compare(row, heap[parent]) <= 0) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                index = parent;
+            }
+            heap[index] = row;
+        }
+
+        /**
+         * 根を {@code row} で置き換え、長さ {@code length} のヒープの中で下ろす。
+         */
+        private void siftDown(int[] array, int length, int row) {
+            int index = 0;
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= length) {
+                    break;
+                }
+                if (child + 1 < length && comparator.compare(array[child + 1], array[child]) > 0) {
+                    child++;
+                }
+                if (comparator.compare(row, array[child]) >= 0) {
+                    break;
+                }
+                array[index] = array[child];
+                index = child;
+            }
+            if (length > 0) {
+                array[index] = row;
+            }
+        }
+    }
+}
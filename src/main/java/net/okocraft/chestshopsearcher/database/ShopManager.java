@@ -1,7 +1,18 @@
 package net.okocraft.chestshopsearcher.database;
 
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.logging.Level;
+
+import javax.persistence.EntityManager;
 
 import com.Acrobot.Breeze.Utils.MaterialUtil;
 
@@ -9,13 +20,34 @@ import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.World;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import net.okocraft.chestshopsearcher.Main;
 
-public class ShopManager extends DatabaseManager<Shop> {
+public class ShopManager extends DatabaseManager<Shop> implements ShopSearcher {
 
     private static final ShopManager INSTANCE = new ShopManager();
 
+    private static final String UPSERT_COLUMNS = "insert into shops (location, world, x, y, z, owner, stock, quantity, item, buy_price, sell_price) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String MYSQL_UPSERT = UPSERT_COLUMNS
+            + " on duplicate key update world = values(world), x = values(x), y = values(y), z = values(z), owner = values(owner), stock = values(stock), quantity = values(quantity), item = values(item), buy_price = values(buy_price), sell_price = values(sell_price)";
+    private static final String SQLITE_UPSERT = UPSERT_COLUMNS
+            + " on conflict(location) do update set world = excluded.world, x = excluded.x, y = excluded.y, z = excluded.z, owner = excluded.owner, stock = excluded.stock, quantity = excluded.quantity, item = excluded.item, buy_price = excluded.buy_price, sell_price = excluded.sell_price";
+
+    /** スキーマの移行が全て終わったかどうか。終わっていなければテーブルの形が合わないので使えない。 */
+    private final boolean schemaReady;
+
     private ShopManager() {
         super(Shop.class);
+
+        boolean migrated = false;
+        try {
+            new SchemaMigrator(this).migrate();
+            migrated = true;
+        } catch (SQLException e) {
+            Main.getInstance().getLogger().log(Level.SEVERE, "Failed to migrate the shops table. It will be resumed on the next start.", e);
+        }
+        schemaReady = migrated;
     }
 
     @NotNull
@@ -23,6 +55,15 @@ public class ShopManager extends DatabaseManager<Shop> {
         return INSTANCE;
     }
 
+    /**
+     * shopsテーブルのスキーマが最新のバージョンになっているかどうか。
+     *
+     * @return 移行が全て終わっていればtrue。失敗した場合はfalse
+     */
+    public boolean isSchemaReady() {
+        return schemaReady;
+    }
+
     @NotNull
     @Override
     public ShopManager persist(@NotNull final Shop shop) {
@@ -41,7 +82,76 @@ public class ShopManager extends DatabaseManager<Shop> {
         return this;
     }
 
-    private static boolean validate(@NotNull final Shop shop) {
+    @Override
+    public int persistAll(@NotNull final Collection<Shop> shops) {
+        return super.persistAll(filterValid(shops));
+    }
+
+    @Override
+    public int mergeAll(@NotNull final Collection<Shop> shops) {
+        return super.mergeAll(filterValid(shops));
+    }
+
+    /**
+     * ショップを一つのSQL文で新規に保存、または既存の行を更新する。
+     *
+     * @param shop 保存するショップ
+     * @return 書き込みに成功したらtrue
+     */
+    public boolean upsert(@NotNull final Shop shop) {
+        return upsertAll(Collections.singletonList(shop));
+    }
+
+    /**
+     * 複数のショップをJDBCのバッチで新規に保存、または既存の行を更新する。
+     * SQLは使っているDBに合わせて {@code INSERT ... ON DUPLICATE KEY UPDATE} (MySQL) か
+     * {@code INSERT ... ON CONFLICT(location) DO UPDATE} (SQLite) を使う。不正なショップは保存しない。
+     *
+     * @param shops 保存するショップ
+     * @return 書き込みに成功したらtrue
+     */
+    public boolean upsertAll(@NotNull final Collection<Shop> shops) {
+        List<Shop> validShops = filterValid(shops);
+        if (validShops.isEmpty()) {
+            return true;
+        }
+        return transaction(em -> upsertAll(em, validShops));
+    }
+
+    /**
+     * 検証済みのショップをトランザクション中のEntityManagerを使って保存する。
+     *
+     * @param em    トランザクション中のEntityManager
+     * @param shops 検証済みのショップ
+     */
+    void upsertAll(@NotNull EntityManager em, @NotNull final Collection<Shop> shops) {
+        executeBatch(em, isMySQL() ? MYSQL_UPSERT : SQLITE_UPSERT, shops, (statement, shop) -> {
+            statement.setString(1, shop.getLocation());
+            statement.setString(2, shop.getWorld());
+            statement.setInt(3, shop.getX());
+            statement.setInt(4, shop.getY());
+            statement.setInt(5, shop.getZ());
+            statement.setBytes(6, toBytes(shop.getOwnerUniqueId()));
+            statement.setInt(7, shop.getStock());
+            statement.setInt(8, shop.getQuantity());
+            statement.setString(9, shop.getItem());
+            statement.setBigDecimal(10, shop.getBuyPrice());
+            statement.setBigDecimal(11, shop.getSellPrice());
+        });
+    }
+
+    @NotNull
+    private static List<Shop> filterValid(@NotNull final Collection<Shop> shops) {
+        List<Shop> validShops = new ArrayList<>(shops.size());
+        for (Shop shop : shops) {
+            if (validate(shop)) {
+                validShops.add(shop);
+            }
+        }
+        return validShops;
+    }
+
+    static boolean validate(@NotNull final Shop shop) {
         if (MaterialUtil.getItem(shop.getItem()) == null) {
             return false;
         }
@@ -50,22 +160,123 @@ public class ShopManager extends DatabaseManager<Shop> {
             return false;
         }
 
-        try {
-            fromDBKey(shop.getLocation());
-            UUID.fromString(shop.getOwnerUniqueId());
-            BigDecimal buyPrice = new BigDecimal(shop.getBuyPrice());
-            BigDecimal sellPrice = new BigDecimal(shop.getSellPrice());
-            if (!buyPrice.equals(BigDecimal.ONE.negate()) && buyPrice.compareTo(BigDecimal.ZERO) < 0) {
-                return false;
-            }
-            if (!sellPrice.equals(BigDecimal.ONE.negate()) && sellPrice.compareTo(BigDecimal.ZERO) < 0) {
-                return false;
-            }
-        } catch (@NotNull final IllegalArgumentException e) {
+        if (shop.getOwnerUniqueId() == null) {
             return false;
         }
 
-        return true;
+        BigDecimal buyPrice = shop.getBuyPrice();
+        BigDecimal sellPrice = shop.getSellPrice();
+        if (buyPrice == null || (shop.isBuying() && buyPrice.signum() < 0)) {
+            return false;
+        }
+        if (sellPrice == null || (shop.isSelling() && sellPrice.signum() < 0)) {
+            return false;
+        }
+
+        // 文字列のキーを分解せずに、列の値と一致するかと、ワールドがあるかだけを調べる。
+        String world = shop.getWorld();
+        Integer x = shop.getX();
+        Integer y = shop.getY();
+        Integer z = shop.getZ();
+        if (world == null || x == null || y == null || z == null || shop.getLocation() == null) {
+            return false;
+        }
+        if (!LocationKey.isPackable(x, y, z) || !LocationKey.matches(shop.getLocation(), world, x, y, z)) {
+            return false;
+        }
+        return Bukkit.getWorld(world) != null;
+    }
+
+    /**
+     * 条件に当てはまるショップの数をDBの {@code count} で数える。
+     *
+     * @param query 検索条件
+     * @return 条件に当てはまるショップの数
+     */
+    @Override
+    public long count(@NotNull final SearchQuery query) {
+        return count(SearchStatement.compile(query).getCountQuery(), SearchStatement.bind(query, (String) null));
+    }
+
+    /**
+     * 条件に当てはまるショップのうち、location が {@code after} より後ろのものを location の順に最大 {@code limit} 件だけDBから読む。
+     * location は主キーなので、ページが進んでも主キーのインデックスを辿るだけで済む。
+     *
+     * @param query 検索条件
+     * @param after 前のページの最後の location。最初のページではnull
+     * @param limit 最大取得件数
+     * @return location の昇順に並べたショップのリスト
+     */
+    @NotNull
+    @Override
+    public List<Shop> page(@NotNull final SearchQuery query, @Nullable final String after, final int limit) {
+        String statement = SearchStatement.compile(query).getPageQuery(after != null);
+        List<Shop> shops = select(statement, 0, limit, SearchStatement.bind(query, after));
+        return shops != null ? shops : new ArrayList<>();
+    }
+
+    /**
+     * 条件に当てはまるショップの location を並び順に最大 {@code limit} 件だけDBから読む。
+     * 並び替えと件数の制限は {@code order by} と {@code limit} としてDBで行う。
+     *
+     * @param query 検索条件
+     * @param order 並び順
+     * @param limit 最大取得件数
+     * @return 並び順に並べた location のリスト
+     */
+    @NotNull
+    @Override
+    public List<String> top(@NotNull final SearchQuery query, @NotNull final SearchOrder order, final int limit) {
+        String statement = SearchStatement.compile(query).getTopQuery(order);
+        List<String> locations = selectValues(statement, String.class, limit, SearchStatement.bind(query, order));
+        return locations != null ? locations : new ArrayList<>();
+    }
+
+    @NotNull
+    @Override
+    public List<Shop> find(@NotNull final List<String> locations) {
+        Map<String, Shop> found = new HashMap<>();
+        for (Shop shop : findAll(locations)) {
+            found.put(shop.getLocation(), shop);
+        }
+
+        List<Shop> result = new ArrayList<>(locations.size());
+        for (String location : locations) {
+            Shop shop = found.get(location);
+            if (shop != null) {
+                result.add(shop);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * UUIDをDBのBINARY(16)の列に保存するバイト列にする。
+     *
+     * @param uuid UUID
+     * @return 上位64ビット、下位64ビットの順に並べた16バイトの配列
+     */
+    @NotNull
+    static byte[] toBytes(@NotNull final UUID uuid) {
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    /**
+     * DBのBINARY(16)の列から読んだバイト列をUUIDに戻す。
+     *
+     * @param bytes 上位64ビット、下位64ビットの順に並べた16バイトの配列
+     * @return UUID。16バイトでなければnull
+     */
+    @Nullable
+    static UUID toUniqueId(@Nullable final byte[] bytes) {
+        if (bytes == null || bytes.length != 16) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong());
     }
 
     @NotNull
@@ -75,22 +286,37 @@ public class ShopManager extends DatabaseManager<Shop> {
             throw new IllegalArgumentException("World cannot be null.");
         }
 
-        return world.getName() + "," + location.getBlockX() + "," + location.getBlockY() + "," + location.getBlockZ();
+        return toDBKey(world.getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+
+    /**
+     * DBの主キーや表示に使う文字列のキーを作る。メモリ上では {@link LocationKey} を使う。
+     */
+    @NotNull
+    public static String toDBKey(@NotNull final String world, final int x, final int y, final int z) {
+        return new StringBuilder(world.length() + 36)
+                .append(world).append(',').append(x).append(',').append(y).append(',').append(z)
+                .toString();
     }
 
+    /**
+     * 文字列のキーを分解する。{@code split} を使わず、区切りの位置から直接数値を読む。
+     */
     @NotNull
     public static Location fromDBKey(@NotNull final String dbKey) throws IllegalArgumentException {
-        final String[] locationParts = dbKey.split(",");
-        if (locationParts.length != 4) {
+        final int first = dbKey.indexOf(',');
+        final int second = first < 0 ? -1 : dbKey.indexOf(',', first + 1);
+        final int third = second < 0 ? -1 : dbKey.indexOf(',', second + 1);
+        if (third < 0 || dbKey.indexOf(',', third + 1) >= 0) {
             throw new IllegalArgumentException("location parts format must be world,x,y,z.");
         }
-        final World dbWorld = Bukkit.getWorld(locationParts[0]);
+        final World dbWorld = Bukkit.getWorld(dbKey.substring(0, first));
         if (dbWorld == null) {
             throw new IllegalArgumentException("world in location parts does not exist.");
         }
-        final int x = Integer.parseInt(locationParts[1]);
-        final int y = Integer.parseInt(locationParts[2]);
-        final int z = Integer.parseInt(locationParts[3]);
+        final int x = Integer.parseInt(dbKey, first + 1, second, 10);
+        final int y = Integer.parseInt(dbKey, second + 1, third, 10);
+        final int z = Integer.parseInt(dbKey, third + 1, dbKey.length(), 10);
 
         return new Location(dbWorld, x, y, z);
     }
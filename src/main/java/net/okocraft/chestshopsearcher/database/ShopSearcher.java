@@ -0,0 +1,54 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ショップの検索を行うもの。
+ * <p>
+ * 並び順を指定しない検索は location の昇順に並べ、キーセット方式でページを読む。
+ * 並び順を指定した検索は上位の location だけを先に読み、ページごとにその location のショップを取得する。
+ */
+public interface ShopSearcher {
+
+    /**
+     * 条件に当てはまるショップの数を数える。
+     *
+     * @param query 検索条件
+     * @return 条件に当てはまるショップの数
+     */
+    long count(@NotNull SearchQuery query);
+
+    /**
+     * 条件に当てはまるショップのうち、location が {@code after} より後ろのものを最大 {@code limit} 件取得する。
+     *
+     * @param query 検索条件
+     * @param after 前のページの最後の location。最初のページではnull
+     * @param limit 最大取得件数
+     * @return location の昇順に並べたショップのリスト
+     */
+    @NotNull
+    List<Shop> page(@NotNull SearchQuery query, @Nullable String after, int limit);
+
+    /**
+     * 条件に当てはまるショップを並び順に並べ、先頭から最大 {@code limit} 件の location を取得する。
+     *
+     * @param query 検索条件
+     * @param order 並び順
+     * @param limit 最大取得件数
+     * @return 並び順に並べた location のリスト
+     */
+    @NotNull
+    List<String> top(@NotNull SearchQuery query, @NotNull SearchOrder order, int limit);
+
+    /**
+     * location を指定してショップを取得する。
+     *
+     * @param locations 取得するショップの location
+     * @return {@code locations} の順に並べたショップのリスト。既に無いショップは含めない
+     */
+    @NotNull
+    List<Shop> find(@NotNull List<String> locations);
+}
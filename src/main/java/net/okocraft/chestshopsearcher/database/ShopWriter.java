@@ -0,0 +1,343 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import javax.persistence.EntityManager;
+
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.config.Config;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ショップの保存と削除をバックグラウンドのスレッドでまとめて書き込むクラス。
+ * <p>
+ * メインスレッドからはバッファに積むだけで、DBへのアクセスは全て書き込みスレッドで行う。
+ * バッファは場所 ({@link ShopManager#toDBKey(org.bukkit.Location)}) をキーにしており、
+ * {@link Config#getWriteBehindFlushInterval()} ミリ秒の間に同じショップへ来た変更は最新の一件にまとめられる。
+ * 作成された直後に削除されたショップはどちらも書き込まれない。
+ * まとめた変更は最大 {@link Config#getWriteBehindBatchSize()} 件ずつ一つのトランザクションでコミットされる。
+ */
+public final class ShopWriter {
+
+    private static final ShopWriter INSTANCE = new ShopWriter();
+
+    private final Object lock = new Object();
+
+    /** 書き込み待ちの変更。積まれた順を保つ。 */
+    @NotNull
+    private Map<String, PendingWrite> buffer = new LinkedHashMap<>();
+
+    @Nullable
+    private Thread thread;
+    private boolean running;
+
+    /** バッファに積まれた変更の数 */
+    private final AtomicLong received = new AtomicLong();
+    /** 後から来た変更に上書きされて書き込まれなかった変更の数 */
+    private final AtomicLong coalesced = new AtomicLong();
+    /** 作成と削除が打ち消し合って書き込まれなかった変更の数 */
+    private final AtomicLong cancelled = new AtomicLong();
+    /** 実際にDBに書き込んだ変更の数 */
+    private final AtomicLong written = new AtomicLong();
+
+    private ShopWriter() {
+    }
+
+    @NotNull
+    public static ShopWriter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 書き込みスレッドを開始する。既に開始されている場合は何もしない。
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+
+            running = true;
+            thread = new Thread(this::run, "ChestShopSearcher-Writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * 新しく作成されたショップを書き込みバッファに積む。
+     * 書き込まれる前に同じ場所のショップが削除された場合、どちらも書き込まれない。
+     *
+     * @param shop 保存するショップ
+     * @return 検証に通って積まれたらtrue
+     * @see #save(Shop)
+     */
+    public boolean create(@NotNull Shop shop) {
+        if (!ShopManager.validate(shop)) {
+            return false;
+        }
+        enqueue(new PendingWrite(shop.getLocation(), shop, true));
+        return true;
+    }
+
+    /**
+     * 更新されたショップを書き込みバッファに積む。
+     * 検証は呼び出し元のスレッドで行い、不正なショップは積まない。
+     * 渡したショップはバッファに積んだ後に変更してはならない。
+     *
+     * @param shop 保存するショップ
+     * @return 検証に通って積まれたらtrue
+     */
+    public boolean save(@NotNull Shop shop) {
+        if (!ShopManager.validate(shop)) {
+            return false;
+        }
+        enqueue(new PendingWrite(shop.getLocation(), shop, false));
+        return true;
+    }
+
+    /**
+     * 削除されたショップを書き込みバッファに積む。
+     *
+     * @param location 削除するショップの場所 ({@link ShopManager#toDBKey(org.bukkit.Location)} の形式)
+     */
+    public void remove(@NotNull String location) {
+        enqueue(new PendingWrite(location, null, false));
+    }
+
+    private void enqueue(@NotNull PendingWrite write) {
+        received.incrementAndGet();
+        synchronized (lock) {
+            if (running) {
+                coalesce(write);
+                return;
+            }
+        }
+
+        // 停止後に来た変更はその場で書き込む。
+        List<PendingWrite> batch = new ArrayList<>(1);
+        batch.add(write);
+        flush(batch);
+    }
+
+    /**
+     * 同じ場所の書き込み待ちの変更に新しい変更をまとめる。{@link #lock} を取得した状態で呼ぶ。
+     *
+     * @param write 新しい変更
+     */
+    private void coalesce(@NotNull PendingWrite write) {
+        PendingWrite previous = buffer.remove(write.location);
+        if (previous == null) {
+            buffer.put(write.location, write);
+            return;
+        }
+
+        if (previous.created && write.shop == null) {
+            // まだDBにない作成を削除で打ち消す。
+            cancelled.addAndGet(2);
+            return;
+        }
+
+        coalesced.incrementAndGet();
+        // 作成の後の更新はまだ作成扱い、削除の後の作成はDBに古い行があるかもしれないので更新扱いにする。
+        boolean created = previous.created && write.shop != null;
+        buffer.put(write.location, new PendingWrite(write.location, write.shop, created));
+    }
+
+    /**
+     * 書き込みスレッドを停止する。バッファに残っている変更は全て書き込んでから戻る。
+     * {@link ShopManager#close()} よりも前に呼ぶ必要がある。
+     */
+    public void shutdown() {
+        Thread writerThread;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            writerThread = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+
+        if (writerThread != null) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // スレッドが異常終了していた場合に備え、残りを呼び出し元のスレッドで書き込む。
+        Map<String, PendingWrite> rest;
+        synchronized (lock) {
+            rest = buffer;
+            buffer = new LinkedHashMap<>();
+        }
+        flushAll(rest.values());
+    }
+
+    /**
+     * 書き込み待ちの変更の数を取得する。
+     *
+     * @return 書き込み待ちの変更の数
+     */
+    public int getPendingCount() {
+        synchronized (lock) {
+            return buffer.size();
+        }
+    }
+
+    /**
+     * バッファに積まれた変更の数を取得する。
+     *
+     * @return バッファに積まれた変更の数
+     */
+    public long getReceivedCount() {
+        return received.get();
+    }
+
+    /**
+     * 同じショップへの後の変更に上書きされ、書き込まれなかった変更の数を取得する。
+     *
+     * @return 上書きされた変更の数
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * 作成と削除が打ち消し合って書き込まれなかった変更の数を取得する。
+     *
+     * @return 打ち消された変更の数
+     */
+    public long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * 実際にDBに書き込んだ変更の数を取得する。
+     *
+     * @return 書き込んだ変更の数
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    private void run() {
+        long flushInterval = Math.max(1L, Config.getInstance().getWriteBehindFlushInterval());
+        while (true) {
+            Map<String, PendingWrite> pending;
+            boolean stopping;
+            synchronized (lock) {
+                if (running) {
+                    try {
+                        lock.wait(flushInterval);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        running = false;
+                    }
+                }
+                stopping = !running;
+                pending = buffer;
+                buffer = new LinkedHashMap<>();
+            }
+
+            try {
+                flushAll(pending.values());
+            } catch (Exception e) {
+                Main.getInstance().getLogger().log(Level.SEVERE, "Failed to write shops to the database.", e);
+            }
+
+            if (stopping) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 変更を {@link Config#getWriteBehindBatchSize()} 件ずつに分けて書き込む。
+     *
+     * @param writes 書き込む変更
+     */
+    private void flushAll(@NotNull Collection<PendingWrite> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        int batchSize = Math.max(1, Config.getInstance().getWriteBehindBatchSize());
+        List<PendingWrite> batch = new ArrayList<>(Math.min(batchSize, writes.size()));
+        for (PendingWrite write : writes) {
+            batch.add(write);
+            if (batch.size() >= batchSize) {
+                flush(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            flush(batch);
+        }
+    }
+
+    /**
+     * 変更を一つのトランザクションで書き込む。保存はまとめて一つのバッチでupsertする。
+     * 失敗した場合は一件ずつ書き込み直し、不正な一件のために他の変更が失われないようにする。
+     *
+     * @param batch 書き込む変更のリスト。同じ場所の変更は一件までしか含まない。
+     */
+    private void flush(@NotNull List<PendingWrite> batch) {
+        ShopManager shopManager = ShopManager.getInstance();
+        if (shopManager.transaction(em -> write(em, batch))) {
+            written.addAndGet(batch.size());
+            return;
+        }
+
+        for (PendingWrite write : batch) {
+            if (shopManager.transaction(em -> write(em, Collections.singletonList(write)))) {
+                written.incrementAndGet();
+            }
+        }
+    }
+
+    private static void write(@NotNull EntityManager em, @NotNull List<PendingWrite> writes) {
+        List<Shop> saves = new ArrayList<>(writes.size());
+        List<String> removes = new ArrayList<>();
+        for (PendingWrite write : writes) {
+            if (write.shop != null) {
+                saves.add(write.shop);
+            } else {
+                removes.add(write.location);
+            }
+        }
+        ShopManager shopManager = ShopManager.getInstance();
+        shopManager.upsertAll(em, saves);
+        shopManager.removeAll(em, removes);
+    }
+
+    /**
+     * 書き込み待ちの一件の変更。{@code shop} がnullの場合は削除を表す。
+     */
+    private static final class PendingWrite {
+
+        @NotNull
+        private final String location;
+        @Nullable
+        private final Shop shop;
+        /** まだDBに書き込まれていない新規作成かどうか */
+        private final boolean created;
+
+        private PendingWrite(@NotNull String location, @Nullable Shop shop, boolean created) {
+            this.location = location;
+            this.shop = shop;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * ワールドごとにショップの行をチャンク単位の格子に分けて持つ空間インデックス。
+ * ワールドは {@link WorldDictionary} の番号で、チャンクは座標を一つの long に詰めて引く。
+ * <p>
+ * 範囲の検索では範囲に重なるチャンクだけを、近い順の検索では基準のチャンクから外側へ1周ずつチャンクを見るので、
+ * 調べるショップの数は全体ではなく周りにあるショップの数で決まる。
+ * 行は追加するだけで、消えた行は {@link ShopColumns} の墓標で判定する。詰めたときは作り直す。
+ * スレッドセーフではないので、{@link ShopIndex} のロックの中で使う。
+ */
+final class SpatialIndex {
+
+    private static final int CHUNK_SHIFT = 4;
+
+    private final Map<Integer, Map<Long, RowList>> cells = new HashMap<>();
+
+    void add(int world, long position, int row) {
+        cells.computeIfAbsent(world, k -> new HashMap<>())
+                .computeIfAbsent(toCellKey(LocationKey.getX(position) >> CHUNK_SHIFT, LocationKey.getZ(position) >> CHUNK_SHIFT), k -> new RowList())
+                .add(row);
+    }
+
+    void clear() {
+        cells.clear();
+    }
+
+    /**
+     * 範囲に重なるチャンクにある行を取得する。範囲の外の行や墓標の行も含みうる。
+     *
+     * @param world    ワールドの番号
+     * @param minX     x座標の最小値
+     * @param maxX     x座標の最大値
+     * @param minZ     z座標の最小値
+     * @param maxZ     z座標の最大値
+     * @param maxCells 調べるチャンクの数の上限
+     * @return 行のリスト。範囲が広すぎる場合はnull
+     */
+    @Nullable
+    RowList getInBox(int world, int minX, int maxX, int minZ, int maxZ, int maxCells) {
+        RowList result = new RowList();
+        Map<Long, RowList> worldCells = cells.get(world);
+        if (worldCells == null) {
+            return result;
+        }
+
+        int minCX = minX >> CHUNK_SHIFT;
+        int maxCX = maxX >> CHUNK_SHIFT;
+        int minCZ = minZ >> CHUNK_SHIFT;
+        int maxCZ = maxZ >> CHUNK_SHIFT;
+        long cellCount = ((long) maxCX - minCX + 1) * ((long) maxCZ - minCZ + 1);
+        if (cellCount > maxCells) {
+            return null;
+        }
+
+        for (int cx = minCX; cx <= maxCX; cx++) {
+            for (int cz = minCZ; cz <= maxCZ; cz++) {
+                RowList rows = worldCells.get(toCellKey(cx, cz));
+                if (rows != null) {
+                    for (int i = 0; i < rows.size(); i++) {
+                        result.add(rows.get(i));
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 基準の座標のチャンクから {@code ring} 周目にあるチャンクの行を渡す。
+     * 0周目は基準のチャンクそのもので、{@code ring} 周目のチャンクにあるブロックは基準の座標から水平に
+     * 少なくとも {@code (ring - 1) * 16 + 1} ブロック離れている。
+     *
+     * @param world    ワールドの番号
+     * @param x        基準のx座標
+     * @param z        基準のz座標
+     * @param ring     何周目か
+     * @param consumer 行を受け取る処理
+     * @return その周にあった、行のあるチャンクの数
+     */
+    int visitRing(int world, int x, int z, int ring, @NotNull IntConsumer consumer) {
+        Map<Long, RowList> worldCells = cells.get(world);
+        if (worldCells == null) {
+            return 0;
+        }
+
+        int centerX = x >> CHUNK_SHIFT;
+        int centerZ = z >> CHUNK_SHIFT;
+        if (ring == 0) {
+            return visitCell(worldCells, centerX, centerZ, consumer);
+        }
+
+        int visited = 0;
+        for (int d = -ring; d <= ring; d++) {
+            visited += visitCell(worldCells, centerX + d, centerZ - ring, consumer);
+            visited += visitCell(worldCells, centerX + d, centerZ + ring, consumer);
+        }
+        for (int d = -ring + 1; d <= ring - 1; d++) {
+            visited += visitCell(worldCells, centerX - ring, centerZ + d, consumer);
+            visited += visitCell(worldCells, centerX + ring, centerZ + d, consumer);
+        }
+        return visited;
+    }
+
+    /**
+     * ワールドにある全ての行を渡す。
+     *
+     * @param world    ワールドの番号
+     * @param consumer 行を受け取る処理
+     */
+    void visitAll(int world, @NotNull IntConsumer consumer) {
+        Map<Long, RowList> worldCells = cells.get(world);
+        if (worldCells != null) {
+            for (RowList rows : worldCells.values()) {
+                for (int i = 0; i < rows.size(); i++) {
+                    consumer.accept(rows.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * ワールドにある、行のあるチャンクの数を取得する。
+     *
+     * @param world ワールドの番号
+     * @return 行のあるチャンクの数
+     */
+    int getCellCount(int world) {
+        Map<Long, RowList> worldCells = cells.get(world);
+        return worldCells == null ? 0 : worldCells.size();
+    }
+
+    private static int visitCell(@NotNull Map<Long, RowList> worldCells, int cx, int cz, @NotNull IntConsumer consumer) {
+        RowList rows = worldCells.get(toCellKey(cx, cz));
+        if (rows == null) {
+            return 0;
+        }
+        for (int i = 0; i < rows.size(); i++) {
+            consumer.accept(rows.get(i));
+        }
+        return 1;
+    }
+
+    private static long toCellKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+}
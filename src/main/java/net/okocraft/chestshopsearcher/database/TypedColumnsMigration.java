@@ -0,0 +1,172 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.config.Config;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * 価格を文字列から DECIMAL に、持ち主のUUIDを文字列から BINARY(16) に変換する。
+ * <p>
+ * 新しい型の shops_migrating テーブルに location の順で一定件数ずつ変換して書き込み、件数ごとにコミットする。
+ * 途中で止まった場合は shops_migrating にある最大の location から再開する。
+ * 価格か持ち主を変換できない行は消さずに、元の型のまま shops_unmigrated テーブルに移す。
+ * 全ての行を書き込んだら元のテーブルを消して置き換える。置き換えはバージョンの記録と同じコミットで確定する。
+ * <p>
+ * MySQLでは置き換えがバージョンの記録より先にコミットされるので、置き換えた後で止まるともう一度実行される。
+ * そのときに変換済みの持ち主を文字列として読むと全ての行を変換できずに失うので、
+ * shops の持ち主が既にバイナリなら何もせず、元のテーブルを消した後で止まっていた場合は名前の変更だけを行う。
+ */
+final class TypedColumnsMigration implements Migration {
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @NotNull
+    @Override
+    public String getDescription() {
+        return "convert prices to DECIMAL and owners to BINARY(16)";
+    }
+
+    @Override
+    public void migrate(@NotNull Connection connection, boolean mysql) throws SQLException {
+        if (isConverted(connection)) {
+            return;
+        }
+        if (!SchemaMigrator.hasTable(connection, "shops") && SchemaMigrator.hasTable(connection, "shops_migrating")) {
+            // 元のテーブルを消した後、名前を変える前に止まっていた。
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("alter table shops_migrating rename to shops");
+            }
+            return;
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("create table if not exists shops_migrating (location varchar(100) not null, buy_price decimal(19,4) not null, item varchar(255) not null, owner binary(16) not null, quantity integer not null, sell_price decimal(19,4) not null, stock integer not null, primary key (location))");
+        }
+        SchemaMigrator.createUnmigratedTable(connection);
+        connection.commit();
+
+        String lastLocation = getLastMigratedLocation(connection);
+        int batchSize = Math.max(1, Config.getInstance().getBulkCommitSize());
+        int converted = 0;
+        int skipped = 0;
+        try (PreparedStatement select = connection.prepareStatement("select location, buy_price, item, owner, quantity, sell_price, stock from shops where location > ? order by location limit ?");
+             PreparedStatement insert = connection.prepareStatement("insert into shops_migrating (location, buy_price, item, owner, quantity, sell_price, stock) values (?, ?, ?, ?, ?, ?, ?)");
+             PreparedStatement keep = connection.prepareStatement("insert into shops_unmigrated (location, buy_price, item, owner, quantity, sell_price, stock) values (?, ?, ?, ?, ?, ?, ?)")) {
+            while (true) {
+                select.setString(1, lastLocation);
+                select.setInt(2, batchSize);
+                int read = 0;
+                try (ResultSet rows = select.executeQuery()) {
+                    while (rows.next()) {
+                        read++;
+                        lastLocation = rows.getString("location");
+                        BigDecimal buyPrice = parsePrice(rows.getString("buy_price"));
+                        BigDecimal sellPrice = parsePrice(rows.getString("sell_price"));
+                        UUID owner = parseUniqueId(rows.getString("owner"));
+                        if (buyPrice == null || sellPrice == null || owner == null) {
+                            // 変換できない行は元のテーブルと一緒に消さないように、そのままの値で残しておく。
+                            keep.setString(1, lastLocation);
+                            keep.setString(2, rows.getString("buy_price"));
+                            keep.setString(3, rows.getString("item"));
+                            keep.setString(4, rows.getString("owner"));
+                            keep.setObject(5, rows.getObject("quantity"));
+                            keep.setString(6, rows.getString("sell_price"));
+                            keep.setObject(7, rows.getObject("stock"));
+                            keep.addBatch();
+                            skipped++;
+                            continue;
+                        }
+
+                        insert.setString(1, lastLocation);
+                        insert.setBigDecimal(2, buyPrice);
+                        insert.setString(3, rows.getString("item"));
+                        insert.setBytes(4, ShopManager.toBytes(owner));
+                        insert.setInt(5, rows.getInt("quantity"));
+                        insert.setBigDecimal(6, sellPrice);
+                        insert.setInt(7, rows.getInt("stock"));
+                        insert.addBatch();
+                        converted++;
+                    }
+                }
+                insert.executeBatch();
+                keep.executeBatch();
+                connection.commit();
+
+                if (read < batchSize) {
+                    break;
+                }
+            }
+        }
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("drop table shops");
+            statement.executeUpdate("alter table shops_migrating rename to shops");
+        }
+        Main.getInstance().getLogger().info("Converted " + converted + " shops.");
+        if (skipped > 0) {
+            Main.getInstance().getLogger().warning(skipped + " shops could not be converted and were moved to the shops_unmigrated table.");
+        }
+    }
+
+    /**
+     * shops の持ち主が既にバイナリに変換されているかどうかを調べる。
+     */
+    private static boolean isConverted(@NotNull Connection connection) throws SQLException {
+        String type = SchemaMigrator.getColumnType(connection, "shops", "owner");
+        return type != null && (type.contains("BINARY") || type.contains("BLOB"));
+    }
+
+    /**
+     * 書き込み済みの最大の location を取得する。変換できずに残した行も、同じコミットで書き込んでいるので含める。
+     */
+    @NotNull
+    private String getLastMigratedLocation(@NotNull Connection connection) throws SQLException {
+        String last = "";
+        for (String table : new String[]{"shops_migrating", "shops_unmigrated"}) {
+            try (Statement statement = connection.createStatement();
+                 ResultSet result = statement.executeQuery("select max(location) from " + table)) {
+                String location = result.next() ? result.getString(1) : null;
+                if (location != null && location.compareTo(last) > 0) {
+                    last = location;
+                }
+            }
+        }
+        return last;
+    }
+
+    @Nullable
+    private static BigDecimal parsePrice(@Nullable String price) {
+        if (price == null) {
+            return null;
+        }
+        try {
+            return new BigDecimal(price);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static UUID parseUniqueId(@Nullable String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(uuid);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * 値と小さな番号を対応させる辞書。同じ値は一つだけ持ち、番号は0から順に振る。
+ * スレッドセーフではないので、持ち主のロックの中で使う。
+ *
+ * @param <T> 値の型
+ */
+final class ValueDictionary<T> {
+
+    private final Map<T, Integer> ids = new HashMap<>();
+    private final List<T> values = new ArrayList<>();
+
+    /**
+     * 値の番号を取得する。初めての値には新しい番号を振る。
+     *
+     * @param value 値
+     * @return 番号
+     */
+    int getOrAdd(@NotNull T value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    /**
+     * 値の番号を取得する。
+     *
+     * @param value 値
+     * @return 番号。まだ振っていない値の場合は-1
+     */
+    int get(@NotNull T value) {
+        Integer id = ids.get(value);
+        return id != null ? id : -1;
+    }
+
+    @NotNull
+    T getValue(int id) {
+        return values.get(id);
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    void clear() {
+        ids.clear();
+        values.clear();
+    }
+}
@@ -0,0 +1,79 @@
+package net.okocraft.chestshopsearcher.database;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * ワールド名と小さな番号を対応させる辞書。番号は初めて見たワールドから順に0から振り、消さない。
+ * 番号はこのサーバーの起動中だけのもので、DBには保存しない。
+ */
+public final class WorldDictionary {
+
+    private static final WorldDictionary INSTANCE = new WorldDictionary();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final List<String> names = new CopyOnWriteArrayList<>();
+
+    private WorldDictionary() {
+    }
+
+    @NotNull
+    public static WorldDictionary getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * ワールドの番号を取得する。初めてのワールドには新しい番号を振る。
+     *
+     * @param name ワールド名
+     * @return ワールドの番号
+     */
+    public int getId(@NotNull String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            return ids.computeIfAbsent(name, k -> {
+                names.add(k);
+                return names.size() - 1;
+            });
+        }
+    }
+
+    /**
+     * ワールドの番号を取得する。番号を振っていないワールドには振らない。
+     *
+     * @param name ワールド名
+     * @return ワールドの番号。振っていない場合は-1
+     */
+    public int getIdIfPresent(@NotNull String name) {
+        Integer id = ids.get(name);
+        return id != null ? id : -1;
+    }
+
+    /**
+     * 番号からワールド名を取得する。
+     *
+     * @param id ワールドの番号
+     * @return ワールド名
+     * @throws IndexOutOfBoundsException 振っていない番号のとき
+     */
+    @NotNull
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    /**
+     * 番号を振ったワールドの数を取得する。
+     *
+     * @return ワールドの数
+     */
+    public int size() {
+        return names.size();
+    }
+}
@@ -1,7 +1,8 @@
 package net.okocraft.chestshopsearcher.listener;
 
+import java.math.BigDecimal;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.UUID;
 
 import com.Acrobot.Breeze.Utils.MaterialUtil;
 import com.Acrobot.Breeze.Utils.PriceUtil;
@@ -15,6 +16,7 @@ import com.Acrobot.ChestShop.Utils.uBlock;
 
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.block.Container;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.HandlerList;
@@ -22,8 +24,11 @@ import org.bukkit.event.Listener;
 import org.bukkit.inventory.ItemStack;
 
 import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.command.CompletionIndex;
 import net.okocraft.chestshopsearcher.database.Shop;
+import net.okocraft.chestshopsearcher.database.ShopIndex;
 import net.okocraft.chestshopsearcher.database.ShopManager;
+import net.okocraft.chestshopsearcher.database.ShopWriter;
 import org.jetbrains.annotations.NotNull;
 
 public class ChestShopListener implements Listener {
@@ -50,34 +55,37 @@ public class ChestShopListener implements Listener {
     }
 
     private Shop createShop(@NotNull Location signLocation, String[] signLines, @NotNull Account ownerAccount) {
-        String location = ShopManager.toDBKey(signLocation);
-        String owner = ownerAccount.getUuid().toString();
+        World world = Objects.requireNonNull(signLocation.getWorld(), "World cannot be null.");
+        UUID owner = ownerAccount.getUuid();
         String item = signLines[ChestShopSign.ITEM_LINE];
         int stock = NameManager.isAdminShop(ownerAccount.getUuid()) ? -1 : getStock(uBlock.findConnectedContainer(signLocation.getBlock()), item);
         String priceLine = signLines[ChestShopSign.PRICE_LINE];
-        String buyPrice = PriceUtil.getExactBuyPrice(priceLine).toString();
-        String sellPrice = PriceUtil.getExactSellPrice(priceLine).toString();
+        BigDecimal buyPrice = PriceUtil.getExactBuyPrice(priceLine);
+        BigDecimal sellPrice = PriceUtil.getExactSellPrice(priceLine);
         int quantity = 1;
         try {
             quantity = Integer.parseInt(signLines[ChestShopSign.QUANTITY_LINE]);
         } catch (NumberFormatException ignore) {
         }
 
-        return new Shop(location, owner, stock, quantity, item, buyPrice, sellPrice);
+        return new Shop(world.getName(), signLocation.getBlockX(), signLocation.getBlockY(), signLocation.getBlockZ(),
+                owner, stock, quantity, item, buyPrice, sellPrice);
     }
 
     private void registerShop(@NotNull Shop shop) {
-        Shop registeredShop = ShopManager.getInstance().find(shop.getLocation());
-        if (registeredShop == null) {
-            ShopManager.getInstance().persist(shop);
-        } else {
-            ShopManager.getInstance().merge(shop);
+        if (ShopWriter.getInstance().save(shop)) {
+            Shop previous = ShopIndex.getInstance().put(shop);
+            CompletionIndex.getInstance().update(previous, shop);
         }
     }
 
     @EventHandler
     public void onShopCreated(@NotNull ShopCreatedEvent event) {
-        registerShop(Objects.requireNonNull(createShop(event.getSign().getLocation(), event.getSignLines(), Objects.requireNonNull(event.getOwnerAccount()))));
+        Shop shop = Objects.requireNonNull(createShop(event.getSign().getLocation(), event.getSignLines(), Objects.requireNonNull(event.getOwnerAccount())));
+        if (ShopWriter.getInstance().create(shop)) {
+            Shop previous = ShopIndex.getInstance().put(shop);
+            CompletionIndex.getInstance().update(previous, shop);
+        }
     }
 
     @EventHandler
@@ -87,9 +95,12 @@ public class ChestShopListener implements Listener {
 
     @EventHandler
     public void onShopRemoved(@NotNull ShopDestroyedEvent event) {
-        ShopManager shopManager = ShopManager.getInstance();
-        Optional.ofNullable(shopManager.find(ShopManager.toDBKey(event.getSign().getLocation())))
-                .ifPresent(shop -> shopManager.remove(shop.getLocation()));
+        Location sign = event.getSign().getLocation();
+        String world = Objects.requireNonNull(sign.getWorld(), "World cannot be null.").getName();
+        Shop removed = ShopIndex.getInstance().remove(world, sign.getBlockX(), sign.getBlockY(), sign.getBlockZ());
+        CompletionIndex.getInstance().update(removed, null);
+        // DBの主キーは文字列なので、書き込みにだけ文字列のキーを作る。
+        ShopWriter.getInstance().remove(ShopManager.toDBKey(world, sign.getBlockX(), sign.getBlockY(), sign.getBlockZ()));
     }
 
     private int getStock(@NotNull Container container, String name) {
@@ -0,0 +1,47 @@
+package net.okocraft.chestshopsearcher.listener;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+
+import net.okocraft.chestshopsearcher.Main;
+import net.okocraft.chestshopsearcher.command.CompletionIndex;
+import net.okocraft.chestshopsearcher.database.OwnerDirectory;
+import org.jetbrains.annotations.NotNull;
+
+public class PlayerListener implements Listener {
+
+    private final Main plugin = Main.getInstance();
+    @NotNull
+    private static PlayerListener instance = new PlayerListener();
+
+    private PlayerListener() {
+    }
+
+    @NotNull
+    public static PlayerListener getInstance() {
+        return instance;
+    }
+
+    public void start() {
+        stop();
+        Bukkit.getPluginManager().registerEvents(this, plugin);
+    }
+
+    public void stop() {
+        HandlerList.unregisterAll(this);
+    }
+
+    @EventHandler
+    public void onPlayerJoin(@NotNull PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        String previous = OwnerDirectory.getInstance().put(player.getUniqueId(), player.getName());
+        if (previous != null) {
+            // 名前を変えたプレイヤーのショップは新しい名前で補完する。
+            CompletionIndex.getInstance().renameOwner(previous, player.getName());
+        }
+    }
+}